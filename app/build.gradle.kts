@@ -31,6 +31,14 @@ android {
     kotlinOptions {
         jvmTarget = "1.8"
     }
+    testOptions {
+        unitTests {
+            // WSLogger reaches android.util.Log by reflection, the stub returns instead of throwing.
+            isReturnDefaultValues = true
+            // Small enough for the upload tests to prove that files are not held in memory.
+            all { it.maxHeapSize = "128m" }
+        }
+    }
 }
 
 dependencies {
@@ -43,4 +51,8 @@ dependencies {
 
     // WS-Client
     implementation("org.java-websocket:Java-WebSocket:1.5.4")
+
+    testImplementation(libs.junit)
+    // The org.json classes of android.jar are stubs in unit tests.
+    testImplementation("org.json:json:20231013")
 }
\ No newline at end of file
@@ -19,6 +19,8 @@ import org.json.JSONException
 import org.json.JSONObject
 import space.safeyou.ws.WSClient.WSOptions
 import space.safeyou.ws.WSClient.WSPacket
+import space.safeyou.ws.WSClient.WSPriority
+import kotlin.concurrent.thread
 
 
 @SuppressLint("MissingInflatedId", "ClickableViewAccessibility", "SetTextI18n")
@@ -62,7 +64,8 @@ class MainActivity : AppCompatActivity(), WSClient.WSEvents {
         connectButton.isEnabled = false
         helpButton.isEnabled = true
 
-        client?.disconnect(0, "")
+        // Release the previous client off the UI thread, close() waits for its queued packets to leave.
+        client?.let { previous -> thread(name = "WSClient-close") { previous.close(500) } }
 
         // Create WebSocket client options
         val options = WSOptions.init()
@@ -88,12 +91,25 @@ class MainActivity : AppCompatActivity(), WSClient.WSEvents {
                     .put("language_code", "en")
             )
 
-        // This method sends JSON data to the server.
-        client?.sendPacket(data)
+        // This method sends JSON data to the server, ahead of any queued control or bulk packets.
+        // The critical lane fails fast: it throws when it is full (or the client is closed) instead of dropping.
+        try {
+            client?.sendPacket(data, WSPriority.CRITICAL)
+        } catch (ex: IllegalStateException) {
+            Log.e(TAG, "Help request not queued: " + ex.message)
+            setStatusText("Help request not sent, try again", Color.RED)
+            return true
+        }
 
         // This method sends JSON data along with file content as bytes to the server.
         // client.sendPacket(data, "YOUR FILE CONTENT".toByteArray())
 
+        // The same, with the content hashed off the UI thread.
+        // client.sendPacketAsync(data, "YOUR FILE CONTENT".toByteArray(), WSPriority.BULK)
+
+        // This method streams a file to the server in chunks, without loading it into memory.
+        // client.sendPacket(data, File("YOUR FILE PATH")) { _, sentBytes, totalBytes -> Log.d(TAG, "$sentBytes/$totalBytes") }
+
         vibro.vibrate(VibrationEffect.createOneShot(200, VibrationEffect.DEFAULT_AMPLITUDE))
 
         return true
@@ -9,64 +9,161 @@
 
 package space.safeyou.ws;
 
-import android.util.Log;
-
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.LimitExceededException;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
 import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.PingFrame;
 import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.CharacterIterator;
 import java.text.StringCharacterIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 @SuppressWarnings("unused")
-public class WSClient {
+public class WSClient implements Closeable {
     private static final String TAG = "WSClient";
+    private static final long MAX_REQUEST_TIMEOUT_MS = TimeUnit.DAYS.toMillis(365);
     private final WSEvents events;
     private final WSOptions options;
+    private final WSRuntime runtime;
+    private final WSLogger logger;
     private final WebSocketClient webSocketClient;
     private final WSSenderQueueManager senderManager = new WSSenderQueueManager();
     private final WSPingManager pingManager = new WSPingManager();
-    private String clientID = null;
-    private String clientSID = "";
-    private JSONObject clientInfo = null;
-    private boolean isVerifiedConnection;
-    private boolean isReconnecting = true;
+    private final WSEventDispatcher dispatcher = new WSEventDispatcher();
+    private final WSFileReceiver fileReceiver = new WSFileReceiver();
+    private final WSReceiveWindow receiveWindow = new WSReceiveWindow();
+    private final WSOutbox outbox;
+    private final WSUploadIndex uploadIndex;
+    private final WSMetricsRecorder metrics = new WSMetricsRecorder();
+    private final AtomicReference<WSSession> session = new AtomicReference<>(WSSession.INITIAL);
+    private final Object stateLock = new Object();
+    private final List<WSStateListener> stateListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean isSocketStarted = new AtomicBoolean();
+    // Guards the reconnect task and counters, never held while calling user code.
+    private final Object reconnectLock = new Object();
+    private ScheduledFuture<?> reconnectTask;
+    private int reconnectAttempts;
+    // One lock each, so the socket reader never waits for a send to deflate a large file. close() ends them.
+    private final Object deflaterLock = new Object();
+    private Deflater deflater;
+    private boolean isDeflaterEnded;
+    private final Object inflaterLock = new Object();
+    private Inflater inflater;
+    private boolean isInflaterEnded;
+    private volatile WSCodec activeCodec = WSCodec.JSON;
+    private final Map<String, WSPacketHandler> packetHandlers = new ConcurrentHashMap<>();
+    private final Map<String, WSPendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final WSRequestTimer requestTimer = new WSRequestTimer();
 
     public WSClient(WSOptions options, WSEvents events) throws URISyntaxException {
         this.options = options;
         this.events = events;
+        this.runtime = options.runtime == null ? WSRuntime.getDefault() : options.runtime;
+        this.logger = options.logger == null ? WSLogger.create(options.debugMode ? WSLogger.VERBOSE : WSLogger.DEBUG) : options.logger;
 
         Map<String, String> httpHeaders = new HashMap<>();
         httpHeaders.put("sec-websocket-platform", "android");
-        httpHeaders.put("Sec-Websocket-Protocol", this.options.protocol == null ? "" : this.options.protocol);
-        httpHeaders.put("Cookie", String.format("X-Session-ID=%s", clientSID));
+        httpHeaders.put("Sec-Websocket-Protocol", WSUtils.getOfferedProtocols(this.options));
+        httpHeaders.put("Cookie", String.format("X-Session-ID=%s", session.get().clientSID));
 
-        webSocketClient = new WebSocketClient(new URI(this.options.url), new Draft_6455(), httpHeaders, this.options.connectTimeoutMs) {
+        webSocketClient = new WebSocketClient(new URI(this.options.url), new WSReceiveDraft(), httpHeaders, this.options.connectTimeoutMs) {
             @Override
             public void onOpen(ServerHandshake serverHandshake) {
-                clientID = "WS_PENDING";
-                isVerifiedConnection = false;
-                isReconnecting = true;
-                Log.d(TAG, "(CONNECTING) / WebSocketClient ID: " + clientID);
-                try {
-                    events.onConnecting(WSClient.this);
-                } catch (Exception ex) {
-                    Log.e(TAG, "(CONNECTING) / Error handling connection event", ex);
+                activeCodec = WSUtils.getNegotiatedCodec(options, serverHandshake.getFieldValue("Sec-WebSocket-Protocol"));
+                WSSession verifying = transition(current ->
+                        current.state == WSState.CONNECTING && !senderManager.isClosed() ? current.withState(WSState.VERIFYING) : null);
+                if (verifying == null) {
+                    // Disconnected or closed during the handshake, the socket is no longer wanted.
+                    logger.d(TAG, "(CONNECTING) / Socket opened in state " + session.get().state + ", closing it");
+                    close(1000, "Client closed");
+                    return;
                 }
+                logger.d(TAG, "(CONNECTING) / WebSocketClient ID: " + verifying.clientID);
+                senderManager.wakeUp();
+                dispatcher.post("(CONNECTING) / Error handling connection event", WSEventKind.CONNECTION, () -> events.onConnecting(WSClient.this));
             }
 
             @Override
@@ -77,21 +174,21 @@ public class WSClient {
             @Override
             public void onMessage(ByteBuffer buffer) {
                 try {
-                    byte[] bytes = buffer.array();
-                    if (bytes.length <= 2) {
+                    metrics.recordReceived(buffer.remaining());
+                    pingManager.onReceived();
+                    if (buffer.remaining() <= 2) {
                         throw new Exception("Invalid data length received.");
                     }
 
-                    WSPacket packet = WSUtils.readPacket(bytes);
+                    // The frame buffer is allocated per message by Java-WebSocket, so the packet can keep a view on it.
+                    WSPacket packet = WSUtils.readPacket(buffer);
 
-                    if (packet.type < -1) {
-                        throw new Exception("Invalid packet type received: " + packet.type);
-                    }
-
-                    if (packet.type == 0) {
-                        handleConnectionVerification(packet);
+                    if (packet.type == WSUtils.TYPE_BATCH) {
+                        for (WSPacket batched : WSUtils.readBatch(packet)) {
+                            handlePacket(batched);
+                        }
                     } else {
-                        handleReceivedPacket(packet);
+                        handlePacket(packet);
                     }
                 } catch (Exception ex) {
                     WSClient.this.onError(ex);
@@ -101,522 +198,5019 @@ public class WSClient {
             @Override
             public void onClose(int code, String reason, boolean remote) {
                 reason = WSUtils.getReasonForCode(code, reason);
-                clientID = null;
-                isVerifiedConnection = false;
-                Log.d(TAG, String.format("(DISCONNECTED) / CloseCode: \"%s\" -> CloseReason: %s", code, reason));
-                try {
-                    events.onDisconnected(WSClient.this, code, reason);
-                } catch (Exception ex) {
-                    Log.e(TAG, "(DISCONNECTED) / Error handling disconnection event", ex);
-                }
-                if (code == 3000 || code == 3003) { // stop reconnecting
+                // 3000 and 3003 stop reconnecting, as does a disconnect().
+                boolean isFinal = code == 3000 || code == 3003;
+                WSSession closed = transition(current ->
+                        current.withState(isFinal || current.state == WSState.CLOSED ? WSState.CLOSED : WSState.BACKING_OFF));
+                fileReceiver.reset();
+                metrics.recordDisconnected(code);
+                logger.d(TAG, String.format("(DISCONNECTED) / CloseCode: \"%s\" -> CloseReason: %s", code, reason));
+                String closeReason = reason;
+                dispatcher.post("(DISCONNECTED) / Error handling disconnection event", WSEventKind.CONNECTION, () -> events.onDisconnected(WSClient.this, code, closeReason));
+                if (closed.state == WSState.CLOSED) {
                     return;
                 }
-                WSClient.this.reconnect();
+                WSClient.this.reconnect(code);
             }
 
             @Override
             public void onError(Exception ex) {
-                Log.e(TAG, "(ERROR) / Exception occurred: " + ex.getMessage(), ex);
+                logger.e(TAG, "(ERROR) / Exception occurred: " + ex.getMessage(), ex);
                 WSClient.this.onError(ex);
             }
 
             @Override
             public void onWebsocketPong(WebSocket conn, Framedata f) {
                 super.onWebsocketPong(conn, f);
-                pingManager.pong();
+                pingManager.pong(f.getPayloadData());
             }
         };
 
-        senderManager.start();
+        // The library has its own ping based connection check, its pongs would be taken as answers to our pings.
+        webSocketClient.setConnectionLostTimeout(0);
+
+        outbox = this.options.outboxDirectory == null ? null : openOutbox(this.options.outboxDirectory);
+        uploadIndex = this.options.uploadIndexFile == null ? null :
+                new WSUploadIndex(this.options.uploadIndexFile, this.options.uploadIndexSize, runtime.executor, logger);
+
         pingManager.start();
     }
 
-    public synchronized String getClientID() {
-        return clientID;
+    /**
+     * Draft_6455 limited to {@code maxMessageSize}, larger messages are refused with 1009. With streaming enabled,
+     * the fragmented binary messages are handed to the {@link WSFileReceiver} instead of being assembled in memory.
+     * permessage-deflate is negotiated in the handshake, the server may refuse it.
+     */
+    private class WSReceiveDraft extends Draft_6455 {
+        private WSReceiveDraft() {
+            super(options.perMessageDeflate ?
+                    Collections.<IExtension>singletonList(new PerMessageDeflateExtension()) :
+                    Collections.<IExtension>emptyList(), options.maxMessageSize);
+        }
+
+        // Java-WebSocket copies the draft for every connection.
+        @Override
+        public Draft copyInstance() {
+            return new WSReceiveDraft();
+        }
+
+        @Override
+        public void processFrame(WebSocketImpl webSocketImpl, Framedata frame) throws InvalidDataException {
+            if (options.streamingThreshold <= 0 || !fileReceiver.onFrame(frame)) {
+                super.processFrame(webSocketImpl, frame);
+            }
+        }
+    }
+
+    /**
+     * Receives the fragmented binary messages on the socket reader thread. A message is buffered until it grows
+     * over the streaming threshold, then its metadata is decoded and passed to the {@link WSFileSink}, and the file
+     * data is written to the sink (or a temporary file) as the fragments arrive. The file data goes through the
+     * SHA-256 digest on the way, and is checked against the "file_hash" of the metadata at the end of the message.
+     * A sequenced packet is only accepted and acked once its file is complete, a duplicate is skipped unwritten.
+     * A message that ends below the threshold is handled like a single frame message.
+     */
+    private class WSFileReceiver {
+        private final byte[] chunk = new byte[8192];
+        private WSByteArrayOutput pending;
+        private WSPacket packet;
+        private OutputStream sink;
+        private File file;
+        private WSFileDigest digest;
+        private Inflater fileInflater;
+        private long messageSize;
+        private long fileSize;
+        private boolean isDiscarding;
+
+        // Returns false for the frames left to Java-WebSocket: control and text frames, single frame messages.
+        private synchronized boolean onFrame(Framedata frame) throws InvalidDataException {
+            Opcode opcode = frame.getOpcode();
+            if (opcode == Opcode.BINARY && !frame.isFin()) {
+                reset();
+                pending = new WSByteArrayOutput((int) Math.min(options.streamingThreshold + 1, 64 * 1024));
+            } else if (opcode != Opcode.CONTINUOUS || (pending == null && packet == null && !isDiscarding)) {
+                return false;
+            }
+            pingManager.onReceived();
+            ByteBuffer payload = frame.getPayloadData();
+            messageSize += payload.remaining();
+            if (messageSize > options.maxMessageSize) {
+                reset();
+                throw new LimitExceededException("The message is larger than " + WSUtils.formatDataSize(options.maxMessageSize));
+            }
+            try {
+                if (isDiscarding) {
+                    isDiscarding = !frame.isFin();
+                    return true;
+                }
+                if (packet != null) {
+                    writeFileData(payload);
+                } else {
+                    WSUtils.write(payload, pending, chunk);
+                    if (pending.size() > options.streamingThreshold) {
+                        startStreaming();
+                    }
+                }
+                if (isDiscarding) {
+                    // A duplicate sequenced packet, its other fragments are skipped.
+                    isDiscarding = !frame.isFin();
+                } else if (frame.isFin()) {
+                    finish();
+                }
+            } catch (Exception ex) {
+                reset();
+                isDiscarding = !frame.isFin();
+                logger.e(TAG, "(RECEIVED) / Error receiving streamed packet", ex);
+                onError(ex);
+            }
+            return true;
+        }
+
+        // Waits for the complete metadata, its size is limited by the length field.
+        private void startStreaming() throws Exception {
+            ByteBuffer buffered = pending.toByteBuffer();
+            if (buffered.remaining() < 5) {
+                return;
+            }
+            int type = buffered.get(0);
+            int flags = buffered.get(1) & 0xFF;
+            int metadataLen = ((buffered.get(2) & 0xFF) << 16) | ((buffered.get(3) & 0xFF) << 8) | (buffered.get(4) & 0xFF);
+            int headerSize = (flags & WSUtils.FLAG_SEQUENCED) != 0 ? 13 : 5;
+            if (buffered.remaining() < headerSize + metadataLen) {
+                return;
+            }
+            if (type < 1) {
+                throw new IOException("Invalid streamed packet type: " + type);
+            }
+            long sequence = headerSize == 13 ? buffered.getLong(5) : -1;
+            // The sequence is only accepted once the file is complete, a duplicate is dropped before it is written.
+            if (sequence >= 0 && receiveWindow.isReceived(sequence)) {
+                logDuplicate(sequence);
+                receiveWindow.scheduleAck();
+                reset();
+                isDiscarding = true;
+                return;
+            }
+            buffered.position(headerSize).limit(headerSize + metadataLen);
+            ByteBuffer metadata = buffered.slice();
+            if ((flags & WSUtils.FLAG_METADATA_COMPRESSED) != 0) {
+                metadata = ByteBuffer.wrap(inflateMetadata(metadata));
+            }
+            packet = new WSPacket(type, flags & WSUtils.FLAG_METADATA_BINARY, metadata.remaining(), metadata, null);
+            packet.sequence = sequence;
+            packet.logger = logger;
+            if ((flags & WSUtils.FLAG_METADATA_BINARY) != 0) {
+                packet.codec = options.codec;
+            }
+            packet.streamedFileSize = 0;
+            JSONObject metadataObject = packet.getDataAsJSONObject();
+            int leafSize = metadataObject == null ? 0 : metadataObject.optInt(WSHasher.LEAF_SIZE_KEY, 0);
+            // A small leaf would cost a digest per few bytes received.
+            if (leafSize != 0 && leafSize < WSHasher.MIN_LEAF_SIZE) {
+                throw new IOException("Invalid file hash leaf size: " + leafSize);
+            }
+            digest = new WSFileDigest(leafSize);
+            fileInflater = (flags & WSUtils.FLAG_FILE_COMPRESSED) != 0 ? new Inflater() : null;
+            sink = options.fileSink == null ? null : options.fileSink.openFileData(WSClient.this, packet);
+            if (sink == null) {
+                file = options.receiveDirectory == null ?
+                        File.createTempFile("ws-receive", ".tmp") :
+                        File.createTempFile("ws-receive", ".tmp", options.receiveDirectory);
+                sink = new FileOutputStream(file);
+            }
+            buffered.limit(pending.size()).position(headerSize + metadataLen);
+            pending = null;
+            writeFileData(buffered);
+        }
+
+        private void writeFileData(ByteBuffer data) throws IOException, DataFormatException {
+            if (fileInflater == null) {
+                while (data.hasRemaining()) {
+                    int count = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, count);
+                    writeChunk(count);
+                }
+                return;
+            }
+            fileInflater.setInput(WSUtils.toBytes(data));
+            while (!fileInflater.finished()) {
+                int count = fileInflater.inflate(chunk);
+                if (count > 0) {
+                    writeChunk(count);
+                } else if (fileInflater.needsInput()) {
+                    return;
+                } else if (fileInflater.needsDictionary()) {
+                    throw new DataFormatException("A dictionary is needed to inflate the file data.");
+                }
+            }
+        }
+
+        // Compressed file data is limited to maxMessageSize once inflated, as the single frame messages are.
+        private void writeChunk(int count) throws IOException, DataFormatException {
+            if (fileSize + count > options.maxMessageSize) {
+                throw new DataFormatException("The inflated file data is larger than " + WSUtils.formatDataSize(options.maxMessageSize));
+            }
+            digest.update(chunk, 0, count);
+            sink.write(chunk, 0, count);
+            fileSize += count;
+        }
+
+        private void finish() throws IOException {
+            if (packet == null) {
+                // Ended below the threshold.
+                ByteBuffer message = pending.toByteBuffer();
+                pending = null;
+                messageSize = 0;
+                webSocketClient.onMessage(message);
+                return;
+            }
+            WSPacket received = packet;
+            File receivedFile = file;
+            String hash = digest.finish();
+            received.streamedFileSize = fileSize;
+            long size = messageSize;
+            sink.close();
+            sink = null;
+            file = null;
+            reset();
+
+            JSONObject metadata = received.getDataAsJSONObject();
+            String expectedHash = metadata == null ? "" : metadata.optString("file_hash", "");
+            if (!expectedHash.isEmpty() && !expectedHash.equalsIgnoreCase(hash)) {
+                if (receivedFile != null && !receivedFile.delete()) {
+                    logger.e(TAG, "(RECEIVED) / Unable to delete temporary file: " + receivedFile);
+                }
+                throw new IOException("File hash mismatch, expected: " + expectedHash + ", received: " + hash);
+            }
+            received.receivedFile = receivedFile;
+            metrics.recordReceived((int) Math.min(size, Integer.MAX_VALUE));
+            if (!acceptSequence(received)) {
+                if (receivedFile != null && !receivedFile.delete()) {
+                    logger.e(TAG, "(RECEIVED) / Unable to delete temporary file: " + receivedFile);
+                }
+                return;
+            }
+            handleReceivedPacket(received);
+        }
+
+        // Drops the message in progress, a partially written temporary file is deleted.
+        private synchronized void reset() {
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (file != null && !file.delete()) {
+                logger.e(TAG, "(RECEIVED) / Unable to delete temporary file: " + file);
+            }
+            if (fileInflater != null) {
+                fileInflater.end();
+            }
+            pending = null;
+            packet = null;
+            sink = null;
+            file = null;
+            digest = null;
+            fileInflater = null;
+            messageSize = 0;
+            fileSize = 0;
+            isDiscarding = false;
+        }
+    }
+
+    // Opens the journal and queues again the packets that were not sent before the process stopped.
+    private WSOutbox openOutbox(File directory) {
+        try {
+            WSOutbox journal = new WSOutbox(directory, options.outboxSegmentSize, logger);
+            for (WSOutbox.WSOutboxRecord record : journal.open()) {
+                WSPacket packet = WSUtils.readPacket(ByteBuffer.wrap(record.payload));
+                if (packet == null) {
+                    journal.acknowledge(record.id);
+                    continue;
+                }
+                packet.outboxId = record.id;
+                senderManager.restorePacket(packet, WSPriority.values()[record.priority]);
+            }
+            return journal;
+        } catch (IOException ex) {
+            logger.e(TAG, "(OUTBOX) / Unable to open the outbox, queued packets will not survive a restart", ex);
+            return null;
+        }
+    }
+
+    public String getClientID() {
+        return session.get().clientID;
     }
 
-    public synchronized String getClientSID() {
-        return clientSID;
+    public String getClientSID() {
+        return session.get().clientSID;
     }
 
-    public synchronized JSONObject getClientInfo() {
-        return clientInfo;
+    public JSONObject getClientInfo() {
+        return session.get().clientInfo;
     }
 
-    public synchronized boolean isConnected() {
-        return webSocketClient.isOpen();
+    /**
+     * True while the socket is open, verified or not.
+     */
+    public boolean isConnected() {
+        WSState state = session.get().state;
+        return state == WSState.VERIFYING || state == WSState.CONNECTED;
     }
 
-    public void connect() {
-        if (!webSocketClient.isOpen()) {
-            if (isReconnecting) {
-                Log.d(TAG, "(CONNECT) / URL: " + this.options.url);
-                webSocketClient.connect();
-            } else {
-                isReconnecting = true;
-                Log.d(TAG, "(RECONNECT) / URL: " + this.options.url);
-                webSocketClient.reconnect();
+    /**
+     * The current state of the connection with the identity the server gave it, an immutable snapshot.
+     */
+    public WSSession getSession() {
+        return session.get();
+    }
+
+    /**
+     * The listeners are called on the dispatch executor after each state change, in the order of the changes, with
+     * the sessions before and after it.
+     */
+    public void addStateListener(WSStateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(WSStateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Replaces the session with the update of the current one. Returns the new session, or null when the update
+     * refused the transition. The changes and the posting of their listener events are serialized, so the listeners
+     * see the changes in the order they happened.
+     */
+    private WSSession transition(UnaryOperator<WSSession> update) {
+        synchronized (stateLock) {
+            WSSession current = session.get();
+            WSSession next = update.apply(current);
+            if (next == null || next == current) {
+                return next;
             }
+            session.set(next);
+            logger.d(TAG, "(STATE) / " + current.state + " -> " + next.state);
+            for (WSStateListener listener : stateListeners) {
+                dispatcher.post("(STATE) / Error handling state change", WSEventKind.CONNECTION, () -> listener.onStateChanged(WSClient.this, current, next));
+            }
+            return next;
+        }
+    }
+
+    public void connect() {
+        if (senderManager.isClosed()) {
+            throw new IllegalStateException("The client is closed.");
+        }
+        synchronized (reconnectLock) {
+            reconnectAttempts = 0;
+        }
+        if (webSocketClient.isOpen()
+                || transition(current -> current.state == WSState.CONNECTING ? null : current.withState(WSState.CONNECTING)) == null) {
+            return;
+        }
+        updateResumeHeader();
+        // A WebSocketClient connects once, the later connections are reconnects.
+        if (isSocketStarted.compareAndSet(false, true)) {
+            logger.d(TAG, "(CONNECT) / URL: " + this.options.url);
+            webSocketClient.connect();
+        } else {
+            logger.d(TAG, "(RECONNECT) / URL: " + this.options.url);
+            webSocketClient.reconnect();
         }
     }
 
     public void disconnect(int code, String reason) {
-        isReconnecting = false;
-        Log.d(TAG, "(DISCONNECT) / Code: " + code + ", Reason: " + reason);
+        transition(current -> current.withState(WSState.CLOSED));
+        synchronized (reconnectLock) {
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
+        }
+        logger.d(TAG, "(DISCONNECT) / Code: " + code + ", Reason: " + reason);
         if (webSocketClient.isOpen()) {
             reason = WSUtils.getReasonForCode(code, reason);
             webSocketClient.close(code, reason);
         }
     }
 
-    private void reconnect() {
-        if (!isReconnecting) {
-            return;
+    /**
+     * Stops reconnecting and pinging, gives the queued packets up to {@code timeoutMs} to be sent, then closes the
+     * socket. The client cannot be used after this. Returns false if packets were still queued at the deadline.
+     */
+    public boolean close(long timeoutMs) {
+        transition(current -> current.withState(WSState.CLOSED));
+        synchronized (reconnectLock) {
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+                reconnectTask = null;
+            }
         }
-        new Thread(() -> {
-            WSUtils.sleep(options.reconnectIntervalMs);
-            if (!isReconnecting) {
-                return;
+        pingManager.stop();
+        boolean drained = senderManager.close(timeoutMs);
+        logger.d(TAG, "(CLOSE) / Drained: " + drained);
+        for (String requestId : pendingRequests.keySet()) {
+            WSPendingRequest pending = pendingRequests.remove(requestId);
+            if (pending != null) {
+                requestTimer.remove(pending);
+                pending.future.completeExceptionally(new IllegalStateException("The client is closed."));
+            }
+        }
+        if (!webSocketClient.isClosed()) {
+            webSocketClient.close(1000, "Client closed");
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+        if (uploadIndex != null) {
+            uploadIndex.close();
+        }
+        synchronized (deflaterLock) {
+            isDeflaterEnded = true;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
             }
-            if (webSocketClient.isClosed()) {
-                webSocketClient.reconnect();
+        }
+        synchronized (inflaterLock) {
+            isInflaterEnded = true;
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
             }
-        }, "WSClientReconnect").start();
+        }
+        return drained;
     }
 
-    public void sendPacket(JSONObject jsonData, byte[] fileContent) {
-        try {
-            String fileHash = WSUtils.sha256(fileContent);
-            jsonData.put("file_hash", fileHash);
-
-            byte[] metadataBytes = jsonData.toString().getBytes(StandardCharsets.UTF_8);
-            byte[] bytes = new byte[metadataBytes.length + fileContent.length];
+    @Override
+    public void close() {
+        close(5000);
+    }
 
-            System.arraycopy(metadataBytes, 0, bytes, 0, metadataBytes.length);
-            System.arraycopy(fileContent, 0, bytes, metadataBytes.length, fileContent.length);
+    private void reconnect(int code) {
+        synchronized (reconnectLock) {
+            if (session.get().state != WSState.BACKING_OFF) {
+                return;
+            }
+            if (options.reconnectMaxAttempts > 0 && reconnectAttempts >= options.reconnectMaxAttempts) {
+                logger.e(TAG, "(RECONNECT) / Giving up after " + reconnectAttempts + " attempts");
+                transition(current -> current.state == WSState.BACKING_OFF ? current.withState(WSState.CLOSED) : null);
+                onError(new IllegalStateException("Reconnect attempts exhausted after " + reconnectAttempts + " attempts."), WSEventKind.CONNECTION);
+                return;
+            }
+            long delayMs = WSUtils.getReconnectDelay(options, code, reconnectAttempts++);
+            logger.d(TAG, "(RECONNECT) / Attempt: " + reconnectAttempts + ", Delay: " + delayMs + " ms");
+            if (reconnectTask != null) {
+                reconnectTask.cancel(false);
+            }
+            reconnectTask = runtime.executor.schedule(() -> {
+                // A connect() or disconnect() in the meantime takes precedence.
+                if (transition(current -> current.state == WSState.BACKING_OFF ? current.withState(WSState.CONNECTING) : null) == null) {
+                    return;
+                }
+                if (webSocketClient.isClosed()) {
+                    updateResumeHeader();
+                    webSocketClient.reconnect();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            senderManager.sendPacket(2, metadataBytes.length, bytes);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
+    /**
+     * In reliable mode the handshake of a reconnect carries the last sequence number received from the server
+     * with no gap before it, next to the X-Session-ID cookie. A server keeping the session only replays the packets
+     * after it and answers with a verification packet with "resumed": true.
+     */
+    private void updateResumeHeader() {
+        if (!options.reliableDelivery || session.get().clientSID.isEmpty()) {
+            return;
         }
+        webSocketClient.removeHeader(WSUtils.RESUME_HEADER);
+        webSocketClient.addHeader(WSUtils.RESUME_HEADER, Long.toString(receiveWindow.getAcknowledged()));
     }
 
-    public void sendPacket(JSONObject jsonData) {
-        byte[] bytes = jsonData.toString().getBytes(StandardCharsets.UTF_8);
-        senderManager.sendPacket(1, bytes.length, bytes);
+    /**
+     * True when the server resumed the previous session on the last verified connection instead of starting a new one.
+     */
+    public boolean isSessionResumed() {
+        return session.get().isResumed;
     }
 
-    private void handleConnectionVerification(WSPacket packet) {
-        try {
-            if (isVerifiedConnection) {
-                throw new IllegalStateException("Already verified connection.");
-            }
+    /**
+     * Routes the received packets with the given "type" in their metadata to the handler instead of
+     * {@link WSEvents#onReceivedPacket}. Only the "type" field is read to route a packet, the metadata is parsed
+     * when the handler asks for it.
+     */
+    public void addPacketHandler(String type, WSPacketHandler handler) {
+        packetHandlers.put(type, handler);
+    }
 
-            JSONObject data = packet.getDataAsJSONObject();
-            Log.d(TAG, "handleConnectionVerification: " + data);
-            clientID = data.getString("id");
-            clientSID = data.getString("sid");
-            clientInfo = data.getJSONObject("info");
+    public void removePacketHandler(String type) {
+        packetHandlers.remove(type);
+    }
 
-            webSocketClient.removeHeader("Cookie");
-            webSocketClient.addHeader("Cookie", String.format("X-Session-ID=%s", clientSID));
+    /**
+     * Returns a snapshot of the traffic, queue, latency and connection counters of this client.
+     */
+    public WSMetrics getMetrics() {
+        return metrics.snapshot();
+    }
 
-            isVerifiedConnection = true;
-            Log.d(TAG, "(CONNECTED) / WebSocketClient ID: " + clientID);
-            try {
-                events.onConnected(WSClient.this, clientID);
-            } catch (Exception ex) {
-                Log.e(TAG, "(CONNECTED) / Error handling connection event", ex);
-            }
-        } catch (Exception ex) {
-            Log.e(TAG, "(CONNECTED) / Error handling connection verification", ex);
-            onError(ex);
-        }
+    public void sendPacket(JSONObject jsonData, byte[] fileContent) {
+        sendPacket(jsonData, fileContent, WSPriority.BULK);
     }
 
-    private void handleReceivedPacket(WSPacket packet) {
+    public void sendPacket(JSONObject jsonData, byte[] fileContent, WSPriority priority) {
+        String fileHash;
         try {
-            int type = packet.getType();
-            byte[] data = packet.getDataAsBytes();
-
-            String packetInfo = options.debugMode ?
-                    String.format("(RECEIVED) / PacketType: \"%s\" -> PacketData: %s", type, new String(data)) :
-                    String.format("(RECEIVED) / PacketType: \"%s\" -> PacketDataSize: %s", type, WSUtils.formatDataSize(data.length));
-            Log.d(TAG, packetInfo);
-            try {
-                events.onReceivedPacket(WSClient.this, new WSPacket(type, data.length, data));
-            } catch (Exception ex) {
-                Log.e(TAG, "(RECEIVED) / Error handling received packet event", ex);
+            if (isTreeHashed(fileContent.length)) {
+                jsonData.put(WSHasher.LEAF_SIZE_KEY, options.treeHashLeafSize);
+                fileHash = WSHasher.treeHash(WSHasher.input(fileContent), fileContent.length, options.treeHashLeafSize, runtime.hashExecutor());
+            } else {
+                fileHash = WSHasher.sha256(fileContent);
             }
-        } catch (Exception ex) {
-            Log.e(TAG, "(RECEIVED) / Error handling received packet", ex);
-            onError(ex);
+        } catch (IOException | JSONException e) {
+            throw new RuntimeException(e);
         }
+        sendFilePacket(jsonData, fileHash, fileContent, null, priority);
     }
 
-    private synchronized void onError(Exception ex) {
-        Log.e(TAG, "(ERROR) / Exception occurred: " + ex.getMessage(), ex);
-        try {
-            events.onError(WSClient.this, ex);
-        } catch (Exception ignored) {
-        }
+    /**
+     * Hashes the file content on the hash threads of the runtime, then queues the packet. For callers on the UI
+     * thread, the future completes once the packet is queued.
+     */
+    public CompletableFuture<Void> sendPacketAsync(JSONObject jsonData, byte[] fileContent, WSPriority priority) {
+        return CompletableFuture.runAsync(() -> sendPacket(jsonData, fileContent, priority), runtime.hashExecutor());
     }
 
-    private class WSPingManager implements Runnable {
-        private boolean isAlive = false;
-        private int pongAttempts = 0;
-        private long sendTime = 0;
+    public void sendPacket(JSONObject jsonData) {
+        sendPacket(jsonData, WSPriority.CONTROL);
+    }
 
-        private void start() {
-            Thread pingThread = new Thread(this, "WebSocketPingManager");
-            pingThread.setDaemon(true);
-            pingThread.start();
-        }
+    /**
+     * Sends the packet with a "_rid" added to a copy of its metadata. The returned future is completed with the
+     * received packet carrying the same "_rid", or fails with a {@link TimeoutException} after the timeout, timeouts
+     * over a year are cut to a year. Any number of requests can be in flight and their replies can arrive in any
+     * order. Replies are not passed to {@link WSEvents#onReceivedPacket}, the futures are completed on the dispatch
+     * executor.
+     */
+    public CompletableFuture<WSPacket> request(JSONObject jsonData, long timeoutMs) {
+        return request(jsonData, WSPriority.CONTROL, timeoutMs);
+    }
 
-        public synchronized void pong() {
-            isAlive = true;
-            pongAttempts = 0;
-            long receivedTime = System.currentTimeMillis();
-            try {
-                WSClient.this.events.onPingTime(WSClient.this, receivedTime - sendTime);
-            } catch (Exception ex) {
-                Log.e(TAG, "(PING) / Error handling pong: " + ex.getMessage());
+    public CompletableFuture<WSPacket> request(JSONObject jsonData, WSPriority priority, long timeoutMs) {
+        return request(1, jsonData, priority, timeoutMs);
+    }
+
+    private CompletableFuture<WSPacket> request(int type, JSONObject jsonData, WSPriority priority, long timeoutMs) {
+        String requestId = Long.toString(nextRequestId.incrementAndGet());
+        // The caller's object is left as it is, it may be sent again or shared with other threads.
+        JSONObject metadata = new JSONObject();
+        try {
+            Iterator<String> keys = jsonData.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                metadata.put(key, jsonData.opt(key));
             }
+            metadata.put(WSUtils.REQUEST_ID_KEY, requestId);
+        } catch (JSONException ex) {
+            throw new RuntimeException(ex);
         }
-
-        @Override
-        public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    if (webSocketClient.isOpen()) {
-                        if (!isAlive) {
-                            if (pongAttempts >= options.pingAttemptCount) {
-                                WSClient.this.disconnect(3001, "Connection timeout");
-                                return;
-                            }
-                            pongAttempts++;
-                        }
-                        sendTime = System.currentTimeMillis();
-                        isAlive = false;
-                        webSocketClient.sendPing();
-                    }
-                } catch (Exception ex) {
-                    Log.e(TAG, "(PING) / Error sending ping: " + ex.getMessage());
-                }
-                WSUtils.sleep(options.pingIntervalMs);
+        // nanoTime() + the timeout would overflow for huge timeouts.
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(Math.max(0, timeoutMs), MAX_REQUEST_TIMEOUT_MS));
+        WSPendingRequest pending = new WSPendingRequest(requestId, System.nanoTime() + timeoutNanos);
+        pendingRequests.put(requestId, pending);
+        requestTimer.add(pending);
+        try {
+            senderManager.sendPacket(buildPacket(type, metadata, null, null), priority);
+        } catch (RuntimeException ex) {
+            if (pendingRequests.remove(requestId, pending)) {
+                requestTimer.remove(pending);
             }
+            pending.future.completeExceptionally(ex);
         }
+        return pending.future;
     }
 
-    private class WSSenderQueueManager implements Runnable {
-        private final Deque<WSPacket> packetQueue = new LinkedList<>();
+    public void sendPacket(JSONObject jsonData, WSPriority priority) {
+        senderManager.sendPacket(buildPacket(1, jsonData, null, null), priority);
+    }
 
-        private void start() {
-            Thread senderThread = new Thread(this, "WebSocketSenderQueueManager");
-            senderThread.setDaemon(true);
-            senderThread.start();
+    /**
+     * Builds the packet body: the metadata is encoded with the codec negotiated for the connection directly into
+     * the body buffer, followed by the file content. With packet compression the metadata and the file content are
+     * compressed when it makes them smaller, file content that does not compress well on a sample is left as it is.
+     */
+    private WSPacket buildPacket(int type, JSONObject jsonData, byte[] fileContent, WSFileSource source) {
+        WSCodec codec = activeCodec;
+        int fileLength = fileContent == null ? 0 : fileContent.length;
+        WSByteArrayOutput output = new WSByteArrayOutput(256 + fileLength);
+        try {
+            codec.encode(jsonData, output);
+        } catch (IOException | JSONException ex) {
+            throw new RuntimeException(ex);
         }
-
-        public synchronized void sendPacket(int type, int metadataLen, byte[] bytes) {
-            if (type < 1 || type > 255) {
-                Log.e(TAG, "(SEND) / The packet type must be between 1 and 255.");
-                return;
+        int metadataLen = output.size();
+        int flags = codec == WSCodec.JSON ? 0 : WSUtils.FLAG_METADATA_BINARY;
+        if (!options.packetCompression) {
+            if (fileLength > 0) {
+                output.write(fileContent, 0, fileLength);
             }
-            packetQueue.offer(new WSPacket(type, metadataLen, bytes));
+            return new WSPacket(type, flags, metadataLen, output.toByteBuffer(), source);
         }
 
-        @Override
-        public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    if (webSocketClient.isOpen()) {
-                        WSPacket packet = packetQueue.poll();
-                        if (packet != null) {
-                            if (!sendWithRetry(packet)) {
-                                packetQueue.offerFirst(packet);
-                            }
-                        }
-                    }
-                    WSUtils.sleep(100);
-                } catch (Exception ex) {
-                    Log.e(TAG, "(SEND) / Error: " + ex.getMessage());
-                    WSUtils.sleep(500);
+        byte[] metadata = output.toByteArray();
+        synchronized (deflaterLock) {
+            if (isDeflaterEnded) {
+                throw new IllegalStateException("The client is closed.");
+            }
+            if (deflater == null) {
+                deflater = new Deflater(options.compressionLevel);
+            }
+            if (metadata.length >= options.compressionMinSize) {
+                byte[] compressed = WSUtils.deflate(deflater, options.compressionDictionary, metadata, 0, metadata.length);
+                if (compressed.length < metadata.length) {
+                    metadata = compressed;
+                    flags |= WSUtils.FLAG_METADATA_COMPRESSED;
+                }
+            }
+            if (fileContent != null && fileContent.length >= options.compressionMinSize && WSUtils.isCompressible(deflater, fileContent)) {
+                byte[] compressed = WSUtils.deflate(deflater, null, fileContent, 0, fileContent.length);
+                if (compressed.length < fileContent.length) {
+                    fileContent = compressed;
+                    flags |= WSUtils.FLAG_FILE_COMPRESSED;
                 }
             }
         }
+        if (fileContent == null || fileContent.length == 0) {
+            return new WSPacket(type, flags, metadata.length, ByteBuffer.wrap(metadata), source);
+        }
+        byte[] bytes = new byte[metadata.length + fileContent.length];
+        System.arraycopy(metadata, 0, bytes, 0, metadata.length);
+        System.arraycopy(fileContent, 0, bytes, metadata.length, fileContent.length);
+        return new WSPacket(type, flags, metadata.length, ByteBuffer.wrap(bytes), source);
+    }
 
-        private boolean sendWithRetry(WSPacket packet) {
+    // Packets queued with the binary codec are re-encoded as JSON if the server did not accept the codec on reconnect.
+    private WSPacket transcodeToJson(WSPacket packet) throws IOException, JSONException, DataFormatException {
+        byte[] metadata;
+        if ((packet.flags & WSUtils.FLAG_METADATA_COMPRESSED) != 0) {
+            Inflater decoder = new Inflater();
             try {
-                logPacketInfo(packet);
-                webSocketClient.send(packet.getPayload());
-                return true;
-            } catch (Exception ex) {
-                Log.e(TAG, "(SEND) / Error sending packet: " + ex.getMessage());
-                return false;
+                metadata = WSUtils.inflate(decoder, options.compressionDictionary, packet.data, WSUtils.LENGTH_MASK);
+            } finally {
+                decoder.end();
             }
+        } else {
+            metadata = WSUtils.toBytes(packet.data);
         }
+        WSByteArrayOutput output = new WSByteArrayOutput(metadata.length * 2 + packet.fileData.remaining());
+        WSCodec.JSON.encode(options.codec.decode(ByteBuffer.wrap(metadata)), output);
+        int metadataLen = output.size();
+        output.write(packet.fileData.duplicate());
+        WSPacket transcoded = new WSPacket(packet.type, packet.flags & WSUtils.FLAG_FILE_COMPRESSED, metadataLen, output.toByteBuffer(), packet.fileSource);
+        transcoded.outboxId = packet.outboxId;
+        transcoded.enqueuedAtNanos = packet.enqueuedAtNanos;
+        transcoded.lane = packet.lane;
+        transcoded.sequence = packet.sequence;
+        transcoded.uploadHash = packet.uploadHash;
+        return transcoded;
+    }
 
-        private void logPacketInfo(WSPacket packet) {
-            String packetInfo = options.debugMode ?
-                    String.format("(SEND) / PacketType: \"%s\" -> PacketData: %s", packet.getType(), packet.getDataAsString()) :
-                    String.format("(SEND) / PacketType: \"%s\" -> PacketDataSize: %s", packet.getType(), WSUtils.formatDataSize(packet.getDataSize()));
-            Log.d(TAG, packetInfo);
+    /**
+     * Sends the file as a type 2 packet without loading it into memory. The hash is computed with one pass
+     * over the file, the content is read again when the packet is sent, in fragments of
+     * {@link WSOptions#setUploadChunkSize(int)} bytes. With {@link WSOptions#setMemoryMappedUploads(boolean)}
+     * the chunks are read from a memory-mapped window of the file instead of a reused heap buffer, Java-WebSocket
+     * still copies each fragment into its frame buffer.
+     */
+    public void sendPacket(JSONObject jsonData, File file, WSUploadListener listener) throws IOException {
+        sendPacket(jsonData, file, WSPriority.BULK, listener);
+    }
+
+    public void sendPacket(JSONObject jsonData, File file, WSPriority priority, WSUploadListener listener) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
         }
+        WSFileSource source = new WSFileSource(file, null, 0, file.length(), false, options.memoryMappedUploads, listener, logger);
+        sendFilePacket(jsonData, hashFileSource(jsonData, source), null, source, priority);
     }
 
-    public static class WSOptions {
-        private String url;
-        private String protocol;
-        private boolean debugMode;
-        private int connectTimeoutMs;
-        private int reconnectIntervalMs;
-        private int pingAttemptCount;
-        private int pingIntervalMs;
+    /**
+     * Hashes the file on the hash threads of the runtime, then queues the packet. The future completes once the
+     * packet is queued, or with the error of the hashing.
+     */
+    public CompletableFuture<Void> sendPacketAsync(JSONObject jsonData, File file, WSPriority priority, WSUploadListener listener) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        runtime.hashExecutor().execute(() -> {
+            try {
+                sendPacket(jsonData, file, priority, listener);
+                future.complete(null);
+            } catch (IOException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        return future;
+    }
 
-        private WSOptions() {
-            debugMode = false;
-            reconnectIntervalMs = 5000;
-            pingAttemptCount = 5;
-            pingIntervalMs = 3000;
-            connectTimeoutMs = 5000;
-        }
+    /**
+     * Sends the remaining content of the channel (from its current position) as a type 2 packet.
+     * The channel is read with positional reads and is not closed, it must stay open until the upload completes.
+     */
+    public void sendPacket(JSONObject jsonData, FileChannel channel, WSUploadListener listener) throws IOException {
+        sendPacket(jsonData, channel, WSPriority.BULK, listener);
+    }
 
-        public WSOptions setUrl(String url) {
-            this.url = url;
-            return this;
-        }
+    public void sendPacket(JSONObject jsonData, FileChannel channel, WSPriority priority, WSUploadListener listener) throws IOException {
+        long position = channel.position();
+        long size = channel.size() - position;
+        WSFileSource source = new WSFileSource(null, channel, position, size, false, options.memoryMappedUploads, listener, logger);
+        sendFilePacket(jsonData, hashFileSource(jsonData, source), null, source, priority);
+    }
 
-        public WSOptions setConnectTimeoutMs(int connectTimeoutMs) {
-            this.connectTimeoutMs = connectTimeoutMs;
-            return this;
-        }
+    /**
+     * Sends the content of the stream as a type 2 packet. The stream is copied to a temporary file while it is
+     * hashed, so that it can be sent (and resent after a reconnect) in fragments. The stream is not closed.
+     */
+    public void sendPacket(JSONObject jsonData, InputStream stream, WSUploadListener listener) throws IOException {
+        sendPacket(jsonData, stream, WSPriority.BULK, listener);
+    }
 
-        public WSOptions setProtocol(String protocol) {
-            this.protocol = protocol;
-            return this;
+    public void sendPacket(JSONObject jsonData, InputStream stream, WSPriority priority, WSUploadListener listener) throws IOException {
+        File tempFile = File.createTempFile("ws-upload", ".tmp");
+        try {
+            // The stream is user code, the digest is not shared with the thread.
+            MessageDigest digest = WSHasher.newDigest();
+            byte[] chunk = new byte[options.uploadChunkSize];
+            long size = 0;
+            OutputStream output = new FileOutputStream(tempFile);
+            try {
+                int read;
+                while ((read = stream.read(chunk)) != -1) {
+                    digest.update(chunk, 0, read);
+                    output.write(chunk, 0, read);
+                    size += read;
+                }
+            } finally {
+                output.close();
+            }
+            WSFileSource source = new WSFileSource(tempFile, null, 0, size, true, options.memoryMappedUploads, listener, logger);
+            sendFilePacket(jsonData, WSHasher.toHex(digest.digest()), null, source, priority);
+        } catch (IOException | RuntimeException ex) {
+            tempFile.delete();
+            throw ex;
         }
+    }
 
-        public WSOptions setDebugMode(boolean debugMode) {
-            this.debugMode = debugMode;
-            return this;
-        }
+    private boolean isTreeHashed(long size) {
+        return options.treeHashMinSize > 0 && size >= options.treeHashMinSize;
+    }
 
-        public WSOptions setReconnectIntervalMs(int reconnectIntervalMs) {
-            this.reconnectIntervalMs = reconnectIntervalMs;
-            return this;
+    private String hashFileSource(JSONObject jsonData, WSFileSource source) throws IOException {
+        try {
+            if (isTreeHashed(source.size)) {
+                jsonData.put(WSHasher.LEAF_SIZE_KEY, options.treeHashLeafSize);
+                return WSHasher.treeHash(WSHasher.input(source.open(), source.position), source.size, options.treeHashLeafSize, runtime.hashExecutor());
+            }
+            return source.sha256(options.uploadChunkSize, runtime.hashExecutor());
+        } catch (JSONException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            source.close();
         }
+    }
 
-        public WSOptions setPingAttemptCount(int pingAttemptCount) {
-            this.pingAttemptCount = pingAttemptCount;
-            return this;
+    /**
+     * With upload dedup, a file the index knows to be on the server is first sent without its content, as a type 2
+     * packet with "file_omitted" set, and the content is uploaded only if the reply has "file_missing" set or does
+     * not come. Other files are uploaded at once and their hash is added to the index once the server has them.
+     */
+    private void sendFilePacket(JSONObject jsonData, String fileHash, byte[] fileContent, WSFileSource source, WSPriority priority) {
+        try {
+            jsonData.put("file_hash", fileHash);
+            if (uploadIndex != null && uploadIndex.contains(fileHash)) {
+                JSONObject reference = new JSONObject(jsonData.toString());
+                reference.put(WSUtils.FILE_OMITTED_KEY, true);
+                CompletableFuture<WSPacket> query = request(2, reference, priority, options.uploadQueryTimeoutMs);
+                if (query.isCompletedExceptionally()) {
+                    // The query was not queued, the caller gets the error as for any other packet.
+                    if (source != null) {
+                        source.release();
+                    }
+                    try {
+                        query.join();
+                    } catch (CompletionException ex) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                }
+                query.whenComplete((reply, error) ->
+                        onFileReferenceReply(reply, error, jsonData, fileHash, fileContent, source, priority));
+                return;
+            }
+        } catch (JSONException e) {
+            if (source != null) {
+                source.release();
+            }
+            throw new RuntimeException(e);
         }
+        uploadFile(jsonData, fileHash, fileContent, source, priority);
+    }
 
-        public WSOptions setPingIntervalMs(int pingIntervalMs) {
-            this.pingIntervalMs = pingIntervalMs;
-            return this;
+    private void onFileReferenceReply(WSPacket reply, Throwable error, JSONObject jsonData, String fileHash, byte[] fileContent,
+                                      WSFileSource source, WSPriority priority) {
+        if (error != null && senderManager.isClosed()) {
+            if (source != null) {
+                source.release();
+            }
+            return;
+        }
+        if (error != null && !(error instanceof TimeoutException)) {
+            logger.e(TAG, "(SEND) / The file query failed: " + fileHash, error);
+            if (source != null) {
+                source.release();
+            }
+            onError(error instanceof Exception ? (Exception) error : new RuntimeException(error));
+            return;
+        }
+        JSONObject replyData = reply == null ? null : reply.getDataAsJSONObject();
+        if (replyData != null && !replyData.optBoolean(WSUtils.FILE_MISSING_KEY, false)) {
+            logger.d(TAG, "(SEND) / The server has the file, upload skipped: " + fileHash);
+            if (source != null) {
+                source.notifyProgress(this, source.size);
+                source.release();
+            }
+            return;
         }
+        if (replyData != null) {
+            uploadIndex.remove(fileHash);
+        }
+        logger.d(TAG, "(SEND) / Uploading the file content: " + fileHash);
+        try {
+            uploadFile(jsonData, fileHash, fileContent, source, priority);
+        } catch (RuntimeException ex) {
+            onError(ex);
+        }
+    }
 
-        public static WSOptions init() {
-            return new WSOptions();
+    private void uploadFile(JSONObject jsonData, String fileHash, byte[] fileContent, WSFileSource source, WSPriority priority) {
+        // Only the metadata of a streamed file can be compressed, its content is sent as it is.
+        WSPacket packet;
+        try {
+            packet = buildPacket(2, jsonData, fileContent, source);
+        } catch (RuntimeException ex) {
+            if (source != null) {
+                source.release();
+            }
+            throw ex;
+        }
+        if (uploadIndex != null) {
+            packet.uploadHash = fileHash;
         }
+        senderManager.sendPacket(packet, priority);
     }
 
-    private static class WSUtils {
-        private static String sha256(final byte[] base) {
-            StringBuilder sb = new StringBuilder();
-            try {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                digest.update(base);
-                for (byte x : digest.digest()) {
-                    String str = Integer.toHexString(Byte.toUnsignedInt(x));
-                    if (str.length() < 2) {
-                        sb.append('0');
-                    }
-                    sb.append(str);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error sha256: " + e.getMessage());
+    private void handlePacket(WSPacket packet) throws Exception {
+        if (packet.type == WSUtils.TYPE_ACK) {
+            if (packet.fileData.remaining() < 8) {
+                throw new Exception("Invalid ack packet received.");
             }
-            return sb.toString();
+            senderManager.onAcknowledged(packet.fileData.getLong(packet.fileData.position()));
+            return;
+        }
+        if (!acceptSequence(packet)) {
+            return;
+        }
+        if (packet.type < -1) {
+            throw new Exception("Invalid packet type received: " + packet.type);
         }
 
-        private static String getReasonForCode(int code, String reason) {
-            if (reason != null && reason.length() > 2) {
-                return reason;
+        if (packet.flags != 0) {
+            synchronized (inflaterLock) {
+                packet = WSUtils.decompress(getInflater(), options.compressionDictionary, packet, options.maxMessageSize);
             }
-            if (code >= 0 && code <= 999) {
-                return "(Unused)";
-            } else if (code >= 1016 && code <= 4999) {
-                if (code <= 1999) {
-                    return "(For WebSocket standard)";
-                } else if (code <= 2999) {
-                    return "(For WebSocket extensions)";
-                } else if (code <= 3999) {
-                    return "(For libraries and frameworks)";
-                } else {
-                    return "(For applications)";
+        }
+        packet.logger = logger;
+        if ((packet.flags & WSUtils.FLAG_METADATA_BINARY) != 0) {
+            packet.codec = options.codec;
+        }
+
+        if (packet.type == 0) {
+            handleConnectionVerification(packet);
+        } else {
+            handleReceivedPacket(packet);
+        }
+    }
+
+    // Marks a sequenced packet as received and schedules its ack, false for a duplicate.
+    private boolean acceptSequence(WSPacket packet) {
+        if (packet.sequence < 0) {
+            return true;
+        }
+        boolean isNew = receiveWindow.accept(packet.sequence);
+        receiveWindow.scheduleAck();
+        if (!isNew) {
+            logDuplicate(packet.sequence);
+        }
+        return isNew;
+    }
+
+    private void logDuplicate(long sequence) {
+        if (logger.isLoggable(WSLogger.VERBOSE)) {
+            logger.log(WSLogger.VERBOSE, TAG, "(RECEIVED) / Duplicate packet, sequence: " + sequence, null);
+        }
+    }
+
+    // Must be called with the inflater lock held.
+    private Inflater getInflater() {
+        if (isInflaterEnded) {
+            throw new IllegalStateException("The client is closed.");
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        return inflater;
+    }
+
+    private byte[] inflateMetadata(ByteBuffer metadata) throws DataFormatException {
+        synchronized (inflaterLock) {
+            return WSUtils.inflate(getInflater(), options.compressionDictionary, metadata, Math.min(options.maxMessageSize, WSUtils.LENGTH_MASK));
+        }
+    }
+
+    /**
+     * Receive side of the reliable mode. Tracks the highest sequence number received and a 1024 bit map of the
+     * ones below it, bit {@code i} standing for {@code highest - i}: a packet is a duplicate if its bit is set or if
+     * it is older than the map. The cumulative ack is the highest sequence number below which nothing is missing,
+     * it is sent at most every 50 ms while packets arrive, through the sender so that it never splits a fragmented
+     * message.
+     */
+    private class WSReceiveWindow implements Runnable {
+        private static final int BITS = 1024;
+        private final long[] words = new long[BITS / 64];
+        private long highest;
+        private long acknowledged;
+        private boolean isAckScheduled;
+
+        private synchronized boolean accept(long sequence) {
+            if (sequence <= acknowledged) {
+                return false;
+            }
+            if (sequence > highest) {
+                shift(sequence - highest);
+                highest = sequence;
+                set(0);
+            } else {
+                long offset = highest - sequence;
+                if (offset >= BITS || get((int) offset)) {
+                    return false;
                 }
+                set((int) offset);
             }
-            switch (code) {
-                case 1000:
-                    return "Normal Closure";
-                case 1001:
-                    return "Going Away";
-                case 1002:
-                    return "Protocol Error";
-                case 1003:
-                    return "Unsupported Data";
-                case 1004:
-                    return "(For future)";
-                case 1005:
-                    return "No Status Received";
-                case 1006:
-                    return "Abnormal Closure";
-                case 1007:
-                    return "Invalid Frame Payload Data";
-                case 1008:
-                    return "Policy Violation";
-                case 1009:
-                    return "Message Too Big";
-                case 1010:
-                    return "Missing Extension";
-                case 1011:
-                    return "Internal Error";
-                case 1012:
-                    return "Service Restart";
-                case 1013:
-                    return "Try Again Later";
-                case 1014:
-                    return "Bad Gateway";
-                case 1015:
-                    return "TLS Handshake";
-                default:
-                    return reason;
+            // Sequence numbers older than the map can not be told apart any more, they count as received.
+            acknowledged = Math.max(acknowledged, highest - BITS);
+            while (acknowledged < highest && get((int) (highest - acknowledged - 1))) {
+                acknowledged++;
             }
+            return true;
         }
 
-        private static String formatDataSize(long bytes) {
-            long absB = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(bytes);
-            if (absB < 1024) {
-                return bytes + " B";
-            }
-            long value = absB;
-            CharacterIterator ci = new StringCharacterIterator("KMGTPE");
-            for (int i = 40; i >= 0 && absB > 0xfffccccccccccccL >> i; i -= 10) {
-                value >>= 10;
-                ci.next();
+        // Same test as accept() without recording the sequence number.
+        private synchronized boolean isReceived(long sequence) {
+            if (sequence <= acknowledged) {
+                return true;
             }
-            value *= Long.signum(bytes);
-            return String.format(Locale.ENGLISH, "%.1f %ciB", value / 1024.0, ci.current());
+            long offset = highest - sequence;
+            return offset >= 0 && (offset >= BITS || get((int) offset));
         }
 
-        private static void sleep(int ms) {
+        private synchronized long getAcknowledged() {
+            return acknowledged;
+        }
+
+        // A new session starts its numbering again.
+        private synchronized void reset() {
+            Arrays.fill(words, 0);
+            highest = 0;
+            acknowledged = 0;
+        }
+
+        private void scheduleAck() {
+            synchronized (this) {
+                if (isAckScheduled) {
+                    return;
+                }
+                isAckScheduled = true;
+            }
             try {
-                Thread.sleep(ms);
-            } catch (InterruptedException ignored) {
+                runtime.executor.schedule(this, 50, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    isAckScheduled = false;
+                }
             }
         }
 
-        private static byte[] createPacket(int type, int metadataLen, byte[] data) {
-            // Create an array to hold the data to be transmitted
-            byte[] payload = new byte[data.length + 5]; // Packet size: data + 1 for the type and 4 for metadataLength
+        @Override
+        public void run() {
+            long sequence;
+            synchronized (this) {
+                isAckScheduled = false;
+                sequence = acknowledged;
+            }
+            senderManager.sendAck(sequence);
+        }
 
-            // Place the type in the first byte of the packet
-            payload[0] = (byte) type;
+        // Moves the bits to make room for a higher sequence number.
+        private void shift(long distance) {
+            if (distance >= BITS) {
+                Arrays.fill(words, 0);
+                return;
+            }
+            int wordShift = (int) (distance >>> 6);
+            int bitShift = (int) (distance & 63);
+            for (int i = words.length - 1; i >= 0; i--) {
+                int source = i - wordShift;
+                long value = source >= 0 ? words[source] << bitShift : 0;
+                if (bitShift != 0 && source > 0) {
+                    value |= words[source - 1] >>> (64 - bitShift);
+                }
+                words[i] = value;
+            }
+        }
 
-            // metadata length
-            payload[1] = (byte) (metadataLen >> 24);
-            payload[2] = (byte) (metadataLen >> 16);
-            payload[3] = (byte) (metadataLen >> 8);
-            payload[4] = (byte) metadataLen;
+        private boolean get(int bit) {
+            return (words[bit >>> 6] & (1L << (bit & 63))) != 0;
+        }
 
-            // Copy data after the first byte into the packet
-            System.arraycopy(data, 0, payload, 5, data.length);
+        private void set(int bit) {
+            words[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
 
-            // Return the formed data packet
-            return payload;
+    private void handleConnectionVerification(WSPacket packet) {
+        try {
+            WSSession current = session.get();
+            if (current.state == WSState.CONNECTED) {
+                throw new IllegalStateException("Already verified connection.");
+            }
+
+            JSONObject data = packet.getDataAsJSONObject();
+            logger.d(TAG, "handleConnectionVerification: " + data);
+            String id = data.getString("id");
+            String sid = data.getString("sid");
+            // A resumed session keeps its state on the server, "info" is only sent again if it changed.
+            boolean isResumed = data.optBoolean("resumed", false) && sid.equals(current.clientSID);
+            JSONObject info = !isResumed || data.has("info") ? data.getJSONObject("info") : current.clientInfo;
+            WSSession connected = transition(previous ->
+                    previous.state == WSState.VERIFYING ? new WSSession(WSState.CONNECTED, id, sid, info, isResumed, previous.sequence + 1) : null);
+            if (connected == null) {
+                // Disconnected while the packet was read.
+                return;
+            }
+            if (!sid.equals(current.clientSID)) {
+                receiveWindow.reset();
+            }
+            // "ack": the last of our sequenced packets the server received, only the later ones are sent again.
+            senderManager.resume(data.optLong("ack", -1));
+
+            webSocketClient.removeHeader("Cookie");
+            webSocketClient.addHeader("Cookie", String.format("X-Session-ID=%s", sid));
+
+            synchronized (reconnectLock) {
+                reconnectAttempts = 0;
+            }
+            metrics.recordConnected();
+            logger.d(TAG, "(CONNECTED) / WebSocketClient ID: " + id);
+            dispatcher.post("(CONNECTED) / Error handling connection event", WSEventKind.CONNECTION, () -> events.onConnected(WSClient.this, id));
+        } catch (Exception ex) {
+            logger.e(TAG, "(CONNECTED) / Error handling connection verification", ex);
+            onError(ex);
         }
+    }
 
-        private static WSPacket readPacket(byte[] payload) {
-            // Check if the byte array exists and contains data
-            if (payload == null || payload.length <= 5) {
-                // If there's no data to read, return null or throw an exception
-                return null; // or throw new IllegalArgumentException("Invalid packet data");
+    private void handleReceivedPacket(WSPacket packet) {
+        try {
+            if (logger.isLoggable(WSLogger.VERBOSE)) {
+                logger.log(WSLogger.VERBOSE, TAG, describePacket("(RECEIVED)", packet), null);
+            }
+            if (!pendingRequests.isEmpty()) {
+                String requestId = packet.readString(WSUtils.REQUEST_ID_KEY);
+                WSPendingRequest pending = requestId == null ? null : pendingRequests.remove(requestId);
+                if (pending != null) {
+                    requestTimer.remove(pending);
+                    dispatcher.post(null, WSEventKind.RESPONSE, () -> pending.future.complete(packet));
+                    return;
+                }
             }
+            WSEventKind kind = packet.sequence >= 0 ? WSEventKind.SEQUENCED_PACKET : WSEventKind.PACKET;
+            if (!packetHandlers.isEmpty()) {
+                String messageType = packet.getMessageType();
+                WSPacketHandler handler = messageType == null ? null : packetHandlers.get(messageType);
+                if (handler != null) {
+                    dispatcher.post("(RECEIVED) / Error handling packet of type: " + messageType, kind, () -> handler.onPacket(WSClient.this, packet));
+                    return;
+                }
+                if (options.dropUnroutedPackets) {
+                    return;
+                }
+            }
+            dispatcher.post("(RECEIVED) / Error handling received packet event", kind, () -> events.onReceivedPacket(WSClient.this, packet));
+        } catch (Exception ex) {
+            logger.e(TAG, "(RECEIVED) / Error handling received packet", ex);
+            onError(ex);
+        }
+    }
 
-            // Get the data type from the 0 byte of the packet
-            int packetType = payload[0];
+    // Only called once the level check passed, a disabled log level costs nothing on the packet paths.
+    private String describePacket(String prefix, WSPacket packet) {
+        return options.debugMode && packet.flags == 0 ?
+                String.format("%s / PacketType: \"%s\" -> PacketData: %s", prefix, packet.getType(), WSUtils.preview(packet.data, options.debugPreviewBytes)) :
+                String.format("%s / PacketType: \"%s\" -> PacketDataSize: %s", prefix, packet.getType(), WSUtils.formatDataSize(packet.getDataSize()));
+    }
+
+    private void onError(Exception ex) {
+        onError(ex, WSEventKind.NOTICE);
+    }
+
+    // Errors that end the connection for good are posted as connection events, so the overflow policy never drops them.
+    private void onError(Exception ex, WSEventKind kind) {
+        logger.e(TAG, "(ERROR) / Exception occurred: " + ex.getMessage(), ex);
+        dispatcher.post(null, kind, () -> events.onError(WSClient.this, ex));
+    }
+
+    private interface WSEventTask {
+        void run() throws Exception;
+    }
 
-            // Get the metadata length from the 1-4 bytes of the packet
-            int metadataLen = ((payload[1] & 0xFF) << 24) |
-                    ((payload[2] & 0xFF) << 16) |
-                    ((payload[3] & 0xFF) << 8) |
-                    (payload[4] & 0xFF);
+    private enum WSEventKind {
+        // Connection changes and terminal errors, never dropped.
+        CONNECTION(false),
+        // Subject to the overflow policy.
+        PACKET(true),
+        // A sequenced packet, acked on receipt so the server will not send it again: never dropped.
+        SEQUENCED_PACKET(false),
+        // Posted from the runtime threads, never waits: dropped instead of blocking.
+        NOTICE(true),
+        // Completes a request future, never dropped.
+        RESPONSE(false);
 
-            // Extract data from the remaining bytes of the packet
-            byte[] data = new byte[payload.length - 5];
-            System.arraycopy(payload, 5, data, 0, data.length);
+        private final boolean droppable;
 
-            return new WSPacket(packetType, metadataLen, data);
+        WSEventKind(boolean droppable) {
+            this.droppable = droppable;
         }
     }
 
-    public static class WSPacket {
-        private final int type;
-        private final int metadataLen;
-        private final byte[] data;
-        private final byte[] fileData;
+    private static class WSEvent {
+        private final String errorMessage;
+        private final boolean droppable;
+        private final WSEventTask task;
 
-        private WSPacket(int type, int metadataLen, byte[] buffer) {
-            this.type = type;
-            this.metadataLen = metadataLen;
-            data = new byte[metadataLen];
-            System.arraycopy(buffer, 0, data, 0, metadataLen);
+        private WSEvent(String errorMessage, WSEventKind kind, WSEventTask task) {
+            this.errorMessage = errorMessage;
+            this.droppable = kind.droppable;
+            this.task = task;
+        }
+    }
 
-            if (buffer.length == metadataLen) {
-                fileData = new byte[0];
-            } else {
-                fileData = new byte[buffer.length - metadataLen];
-                System.arraycopy(buffer, metadataLen, fileData, 0, fileData.length);
+    /**
+     * Runs the {@link WSEvents} callbacks and packet handlers in order, on the dispatch executor, so the socket
+     * reader and the heartbeat never wait on application code. Only one drain task runs at a time.
+     * <p>
+     * Connection events, terminal errors and sequenced packets, already acked, are always queued. Other packet,
+     * error and ping events are droppable: at most {@code dispatchQueueCapacity} of them are queued, then the
+     * overflow policy applies. Error and ping events are posted from the runtime threads and are dropped rather than
+     * blocked. Ping times are coalesced, a queued ping event reports the latest RTT. When the executor refuses the
+     * drain task, the droppable events are dropped and the others run on the posting thread.
+     */
+    private class WSEventDispatcher implements Runnable {
+        private final Deque<WSEvent> queue = new ArrayDeque<>();
+        private int droppableCount;
+        private boolean isDraining;
+        private Thread drainThread;
+        private boolean isPingQueued;
+        private long pingTimeMs;
+        private WSEvent pingEvent;
+
+        // Returns the queued event, or null when it was dropped.
+        private WSEvent post(String errorMessage, WSEventKind kind, WSEventTask task) {
+            WSEvent event;
+            synchronized (this) {
+                while (kind.droppable && droppableCount >= options.dispatchQueueCapacity) {
+                    WSOverflowPolicy policy = options.dispatchOverflowPolicy;
+                    if (policy == WSOverflowPolicy.BLOCK && kind == WSEventKind.NOTICE) {
+                        policy = WSOverflowPolicy.DROP_OLDEST;
+                    }
+                    // A callback posting from the dispatch thread would wait for itself.
+                    if (policy == WSOverflowPolicy.BLOCK && drainThread != Thread.currentThread()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            metrics.recordDroppedEvent();
+                            return null;
+                        }
+                    } else if (policy == WSOverflowPolicy.DROP_OLDEST) {
+                        dropOldest();
+                    } else {
+                        metrics.recordDroppedEvent();
+                        return null;
+                    }
+                }
+                event = new WSEvent(errorMessage, kind, task);
+                queue.add(event);
+                if (event.droppable) {
+                    droppableCount++;
+                }
+                if (isDraining) {
+                    return event;
+                }
+                isDraining = true;
+            }
+            try {
+                (options.dispatchExecutor == null ? runtime.dispatchExecutor() : options.dispatchExecutor).execute(this);
+            } catch (RejectedExecutionException ex) {
+                logger.e(TAG, "(DISPATCH) / Unable to run the event callbacks: " + ex.getMessage());
+                // Nothing else would drain the queue: the droppable events are dropped, the others run on this thread.
+                synchronized (this) {
+                    dropAll();
+                    if (event.droppable) {
+                        event = null;
+                    }
+                }
+                run();
             }
+            return event;
         }
 
-        public int getType() {
-            return type;
+        private void postPingTime(long milliseconds) {
+            synchronized (this) {
+                pingTimeMs = milliseconds;
+                if (isPingQueued && options.coalescePingEvents) {
+                    return;
+                }
+                isPingQueued = true;
+            }
+            WSEvent event = post("(PING) / Error handling pong", WSEventKind.NOTICE, () -> {
+                long latest;
+                synchronized (WSEventDispatcher.this) {
+                    latest = pingTimeMs;
+                    isPingQueued = false;
+                }
+                events.onPingTime(WSClient.this, latest);
+            });
+            synchronized (this) {
+                if (event == null) {
+                    isPingQueued = false;
+                } else {
+                    pingEvent = event;
+                }
+            }
         }
 
-        public int getDataSize() {
-            return data.length;
+        private void dropOldest() {
+            Iterator<WSEvent> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (drop(iterator)) {
+                    return;
+                }
+            }
         }
 
-        public byte[] getDataAsBytes() {
-            return data.clone();
+        private void dropAll() {
+            Iterator<WSEvent> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                drop(iterator);
+            }
+            notifyAll();
         }
 
-        public byte[] getFileDataAsBytes() {
-            return fileData.clone();
+        // Removes the next event if it is droppable.
+        private boolean drop(Iterator<WSEvent> iterator) {
+            WSEvent event = iterator.next();
+            if (!event.droppable) {
+                return false;
+            }
+            if (event == pingEvent) {
+                isPingQueued = false;
+            }
+            iterator.remove();
+            droppableCount--;
+            metrics.recordDroppedEvent();
+            return true;
         }
 
-        public int getFileDataSize() {
-            return fileData.length;
+        @Override
+        public void run() {
+            while (true) {
+                WSEvent event;
+                synchronized (this) {
+                    event = queue.poll();
+                    if (event == null) {
+                        isDraining = false;
+                        drainThread = null;
+                        return;
+                    }
+                    drainThread = Thread.currentThread();
+                    if (event.droppable) {
+                        droppableCount--;
+                        notifyAll();
+                    }
+                }
+                try {
+                    event.task.run();
+                } catch (Exception ex) {
+                    if (event.errorMessage != null) {
+                        logger.e(TAG, event.errorMessage, ex);
+                    }
+                }
+            }
         }
+    }
 
-        public String getDataAsString() {
-            return new String(data, StandardCharsets.UTF_8);
+    private static class WSPendingRequest {
+        private final String id;
+        private final long deadlineNanos;
+        private final CompletableFuture<WSPacket> future = new CompletableFuture<>();
+        private long deadlineTick;
+
+        private WSPendingRequest(String id, long deadlineNanos) {
+            this.id = id;
+            this.deadlineNanos = deadlineNanos;
         }
+    }
 
-        public JSONObject getDataAsJSONObject() {
-            try {
-                return new JSONObject(getDataAsString());
-            } catch (JSONException ex) {
-                Log.e(TAG, "Error converting data to JSONObject: " + ex.getMessage());
-                return null;
+    /**
+     * Hashed timer wheel for the request timeouts: 512 slots of 50 ms, a request is put in the slot of its
+     * deadline tick and expired when the wheel reaches it. Adding a request is O(1) and there is one ticking task
+     * per client, running only while requests are waiting. Answered requests are removed from their slot, so the
+     * task stops with the last answer.
+     */
+    private class WSRequestTimer implements Runnable {
+        private static final int SLOT_COUNT = 512;
+        private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        private final List<Set<WSPendingRequest>> slots = new ArrayList<>(SLOT_COUNT);
+        private long startNanos;
+        private long currentTick;
+        private int count;
+        private ScheduledFuture<?> tickTask;
+
+        private WSRequestTimer() {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                slots.add(new HashSet<>());
             }
         }
 
-        public byte[] getPayload() {
-            return WSUtils.createPacket(type, metadataLen, data);
+        private synchronized void add(WSPendingRequest request) {
+            if (count++ == 0) {
+                startNanos = System.nanoTime();
+                currentTick = 0;
+                tickTask = runtime.executor.scheduleAtFixedRate(this, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+            }
+            long tick = (request.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+            request.deadlineTick = Math.max(tick, currentTick + 1);
+            slots.get((int) (request.deadlineTick % SLOT_COUNT)).add(request);
+        }
+
+        private synchronized void remove(WSPendingRequest request) {
+            if (!slots.get((int) (request.deadlineTick % SLOT_COUNT)).remove(request)) {
+                return;
+            }
+            if (--count == 0 && tickTask != null) {
+                tickTask.cancel(false);
+                tickTask = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            List<WSPendingRequest> expired = new ArrayList<>();
+            synchronized (this) {
+                long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+                // After a long pause, one turn of the wheel visits every slot.
+                currentTick = Math.max(currentTick, nowTick - SLOT_COUNT);
+                while (currentTick < nowTick) {
+                    currentTick++;
+                    Iterator<WSPendingRequest> iterator = slots.get((int) (currentTick % SLOT_COUNT)).iterator();
+                    while (iterator.hasNext()) {
+                        WSPendingRequest request = iterator.next();
+                        if (request.deadlineTick <= currentTick) {
+                            iterator.remove();
+                            count--;
+                            expired.add(request);
+                        }
+                    }
+                }
+                if (count == 0 && tickTask != null) {
+                    tickTask.cancel(false);
+                    tickTask = null;
+                }
+            }
+            for (WSPendingRequest request : expired) {
+                if (pendingRequests.remove(request.id, request)) {
+                    dispatcher.post(null, WSEventKind.RESPONSE, () -> request.future.completeExceptionally(
+                            new TimeoutException("No reply to request " + request.id)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Heartbeat based on {@link System#nanoTime()}. The RTT of each answered ping updates the smoothed RTT and RTT
+     * variance (RFC 6298), from which the ping timeout is derived: {@code srtt + 4 * rttvar}, clamped to the
+     * configured bounds and doubled for each ping lost in a row. The connection is closed with 3001 after
+     * {@code pingAttemptCount} consecutive lost pings. Any received message counts as a sign of life.
+     * <p>
+     * In adaptive mode no ping is sent while messages are received, and the interval doubles after each answered
+     * ping, from the minimum up to the maximum interval. A lost ping brings it back to the minimum.
+     */
+    private class WSPingManager implements Runnable {
+        private volatile long lastReceivedNanos;
+        private long lastPingNanos;
+        private long pingSentNanos;
+        // Carried in the ping payload and echoed by the pong, a late pong of a retried ping is not an RTT sample.
+        private long pingId;
+        private int lostPings;
+        private long intervalNanos;
+        private long smoothedRttNanos;
+        private long rttVarianceNanos;
+        private boolean isStopped;
+        private ScheduledFuture<?> pingTask;
+
+        private synchronized void start() {
+            isStopped = false;
+            intervalNanos = initialIntervalNanos();
+            pingTask = runtime.executor.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private synchronized void stop() {
+            isStopped = true;
+            if (pingTask != null) {
+                pingTask.cancel(false);
+                pingTask = null;
+            }
+        }
+
+        // Called for every received message, without locking.
+        private void onReceived() {
+            lastReceivedNanos = System.nanoTime();
+        }
+
+        public void pong(ByteBuffer payload) {
+            long receivedTime = System.nanoTime();
+            lastReceivedNanos = receivedTime;
+            long rttNanos;
+            synchronized (this) {
+                if (pingSentNanos == 0 || payload.remaining() != 8 || payload.getLong(payload.position()) != pingId) {
+                    return; // Unsolicited or late pong, no RTT sample.
+                }
+                rttNanos = receivedTime - pingSentNanos;
+                pingSentNanos = 0;
+                lostPings = 0;
+                if (smoothedRttNanos == 0) {
+                    smoothedRttNanos = rttNanos;
+                    rttVarianceNanos = rttNanos / 2;
+                } else {
+                    rttVarianceNanos += (Math.abs(smoothedRttNanos - rttNanos) - rttVarianceNanos) / 4;
+                    smoothedRttNanos += (rttNanos - smoothedRttNanos) / 8;
+                }
+                if (options.adaptivePing) {
+                    intervalNanos = Math.min(intervalNanos * 2, TimeUnit.MILLISECONDS.toNanos(options.pingMaxIntervalMs));
+                }
+                metrics.recordRtt(TimeUnit.NANOSECONDS.toMicros(rttNanos),
+                        TimeUnit.NANOSECONDS.toMicros(smoothedRttNanos), TimeUnit.NANOSECONDS.toMicros(rttVarianceNanos));
+            }
+            dispatcher.postPingTime(TimeUnit.NANOSECONDS.toMillis(rttNanos));
+        }
+
+        // Runs on the runtime executor and schedules its next run itself, the delay depends on the state.
+        @Override
+        public void run() {
+            boolean sendPing = false;
+            boolean timedOut = false;
+            long id;
+            synchronized (this) {
+                if (isStopped) {
+                    return;
+                }
+                long now = System.nanoTime();
+                long delayNanos;
+                if (!webSocketClient.isOpen()) {
+                    pingSentNanos = 0;
+                    lostPings = 0;
+                    intervalNanos = initialIntervalNanos();
+                    delayNanos = intervalNanos;
+                } else if (pingSentNanos != 0) {
+                    long timeout = timeoutNanos();
+                    long waitingSince = Math.max(pingSentNanos, lastReceivedNanos);
+                    if (now - waitingSince < timeout) {
+                        delayNanos = waitingSince + timeout - now;
+                    } else if (++lostPings >= options.pingAttemptCount) {
+                        timedOut = true;
+                        pingSentNanos = 0;
+                        lostPings = 0;
+                        intervalNanos = initialIntervalNanos();
+                        delayNanos = intervalNanos;
+                    } else {
+                        logger.d(TAG, "(PING) / Ping lost, attempt: " + lostPings);
+                        intervalNanos = initialIntervalNanos();
+                        sendPing = true;
+                        pingSentNanos = lastPingNanos = now;
+                        delayNanos = timeoutNanos();
+                    }
+                } else {
+                    long reference = options.adaptivePing ? Math.max(lastPingNanos, lastReceivedNanos) : lastPingNanos;
+                    long due = reference + intervalNanos;
+                    if (now < due) {
+                        delayNanos = due - now;
+                    } else {
+                        sendPing = true;
+                        pingSentNanos = lastPingNanos = now;
+                        delayNanos = timeoutNanos();
+                    }
+                }
+                if (sendPing) {
+                    pingId++;
+                }
+                id = pingId;
+                pingTask = runtime.executor.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            if (timedOut) {
+                WSClient.this.disconnect(3001, "Connection timeout");
+                return;
+            }
+            if (sendPing) {
+                try {
+                    PingFrame ping = new PingFrame();
+                    ping.setPayload((ByteBuffer) ByteBuffer.allocate(8).putLong(id).flip());
+                    webSocketClient.sendFrame(ping);
+                } catch (Exception ex) {
+                    logger.e(TAG, "(PING) / Error sending ping: " + ex.getMessage());
+                }
+            }
+        }
+
+        private long initialIntervalNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(options.adaptivePing ? options.pingMinIntervalMs : options.pingIntervalMs);
+        }
+
+        // Must be called with the lock held.
+        private long timeoutNanos() {
+            long minTimeout = TimeUnit.MILLISECONDS.toNanos(options.pingMinTimeoutMs);
+            long maxTimeout = TimeUnit.MILLISECONDS.toNanos(options.pingMaxTimeoutMs);
+            long timeout = smoothedRttNanos == 0 ? TimeUnit.SECONDS.toNanos(3) : smoothedRttNanos + 4 * rttVarianceNanos;
+            timeout = Math.min(maxTimeout, Math.max(minTimeout, timeout));
+            return Math.min(maxTimeout, timeout << Math.min(lostPings, 16));
+        }
+    }
+
+    /**
+     * The queue does not own a thread: enqueuing a packet or opening the socket submits one drain task to the
+     * runtime executor, which sends until the queue is empty or the socket is closed.
+     */
+    private class WSSenderQueueManager implements Runnable {
+        // One FIFO lane per priority, indexed by WSPriority.ordinal(), lower ordinal is sent first.
+        private final Deque<WSPacket>[] packetQueues = WSUtils.createLanes(WSPriority.values().length);
+        private boolean isDraining;
+        private boolean isClosed;
+        private ScheduledFuture<?> lingerTask;
+        // Reliable mode: sequenced packets sent and not yet acknowledged by the server.
+        private final Deque<WSPacket> unacknowledged = new ArrayDeque<>();
+        private long nextSequence = 1;
+        private boolean isAwaitingResume;
+        // An ack frame must not land between the fragments of a message, it waits for the last one.
+        private final Object fragmentLock = new Object();
+        private boolean isFragmenting;
+        private boolean isAckDeferred;
+
+        public void sendPacket(WSPacket packet, WSPriority priority) {
+            if (packet.type < 1 || packet.type > 255 || (byte) packet.type == WSUtils.TYPE_BATCH || (byte) packet.type == WSUtils.TYPE_ACK) {
+                logger.e(TAG, "(SEND) / The packet type must be between 1 and 255, 253 and 254 are reserved.");
+                discard(packet);
+                return;
+            }
+            if (isClosed()) {
+                discard(packet);
+                throw new IllegalStateException("The client is closed.");
+            }
+            // Journal the packet before it is queued, the fsync is shared with concurrent senders and happens
+            // outside the queue lock. Streamed file packets are not journaled, their source may not outlive the process.
+            if (outbox != null && packet.fileSource == null) {
+                try {
+                    packet.outboxId = outbox.append(priority.ordinal(), packet, runtime.bufferPool);
+                } catch (IOException ex) {
+                    logger.e(TAG, "(OUTBOX) / Error writing packet: " + ex.getMessage());
+                }
+            }
+            enqueue(packet, priority);
+        }
+
+        private synchronized boolean isClosed() {
+            return isClosed;
+        }
+
+        private synchronized void restorePacket(WSPacket packet, WSPriority priority) {
+            packet.enqueuedAtNanos = System.nanoTime();
+            packetQueues[priority.ordinal()].offer(packet);
+            metrics.recordQueueDepth(1);
+            scheduleDrain();
+        }
+
+        private synchronized void enqueue(WSPacket packet, WSPriority priority) {
+            Deque<WSPacket> lane = packetQueues[priority.ordinal()];
+            int capacity = options.queueCapacity[priority.ordinal()];
+            while (lane.size() >= capacity && !isClosed) {
+                switch (options.queueOverflowPolicy[priority.ordinal()]) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            discard(packet);
+                            throw new IllegalStateException("Interrupted while waiting for space in the " + priority + " queue.", ex);
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        WSPacket dropped = lane.poll();
+                        metrics.recordQueueDepth(-1);
+                        logger.e(TAG, "(SEND) / The " + priority + " queue is full, dropping the oldest packet of type " + dropped.type);
+                        discard(dropped);
+                        break;
+                    default:
+                        discard(packet);
+                        throw new IllegalStateException("The " + priority + " queue is full (" + capacity + " packets).");
+                }
+            }
+            if (isClosed) {
+                discard(packet);
+                throw new IllegalStateException("The client is closed.");
+            }
+            packet.enqueuedAtNanos = System.nanoTime();
+            lane.offer(packet);
+            metrics.recordQueueDepth(1);
+            scheduleDrain();
+        }
+
+        // Called when the socket opens so that packets queued while offline leave immediately. In reliable mode
+        // they wait for the verification, which tells what the server already received.
+        public synchronized void wakeUp() {
+            isAwaitingResume = options.reliableDelivery;
+            scheduleDrain();
+        }
+
+        // Called on verification. In reliable mode the packets the server did not acknowledge on the previous
+        // connection go first, with their sequence numbers.
+        private synchronized void resume(long acknowledgedSequence) {
+            if (acknowledgedSequence >= 0) {
+                onAcknowledged(acknowledgedSequence);
+            }
+            isAwaitingResume = false;
+            Iterator<WSPacket> iterator = unacknowledged.descendingIterator();
+            while (iterator.hasNext()) {
+                WSPacket packet = iterator.next();
+                packetQueues[packet.lane].offerFirst(packet);
+            }
+            metrics.recordQueueDepth(unacknowledged.size());
+            unacknowledged.clear();
+            scheduleDrain();
+        }
+
+        // A cumulative ack: the server received every packet up to the sequence number.
+        private synchronized void onAcknowledged(long sequence) {
+            Iterator<WSPacket> iterator = unacknowledged.iterator();
+            while (iterator.hasNext()) {
+                WSPacket packet = iterator.next();
+                if (packet.sequence <= sequence) {
+                    iterator.remove();
+                    acknowledge(packet);
+                    recordUpload(packet);
+                }
+            }
+            // The window may have room again.
+            scheduleDrain();
+            notifyAll();
+        }
+
+        // With the lock held. Streamed file packets are not sequenced, their source is released once sent.
+        // A sequenced packet is unacknowledged from the moment it is picked, its ack may arrive before the send returns.
+        private void assignSequence(WSPacket packet) {
+            if (options.reliableDelivery && packet.fileSource == null) {
+                if (packet.sequence < 0) {
+                    packet.sequence = nextSequence++;
+                }
+                unacknowledged.add(packet);
+            }
+        }
+
+        // With the lock held, for a packet that failed to send. Returns false when resume() already put it back in
+        // its lane.
+        private boolean takeBackUnsent(WSPacket packet) {
+            return packet.sequence < 0 || unacknowledged.remove(packet);
+        }
+
+        // Sequenced packets are acknowledged by the server.
+        private void onSent(WSPacket packet) {
+            if (packet.sequence < 0) {
+                acknowledge(packet);
+                recordUpload(packet);
+            }
+        }
+
+        // Sends the cumulative ack of the receive window, after the fragmented message being sent if there is one.
+        private void sendAck(long sequence) {
+            synchronized (fragmentLock) {
+                if (isFragmenting) {
+                    isAckDeferred = true;
+                    return;
+                }
+                writeAck(sequence);
+            }
+        }
+
+        private void writeAck(long sequence) {
+            byte[] frame = new byte[13];
+            WSUtils.writePacket(WSUtils.TYPE_ACK, 0, 0, WSUtils.EMPTY_BUFFER, frame, 0);
+            ByteBuffer.wrap(frame, 5, 8).putLong(sequence);
+            try {
+                webSocketClient.send(frame);
+            } catch (RuntimeException ex) {
+                // The server sends the packets again after the reconnect, the ack goes with the next one.
+                logger.e(TAG, "(ACK) / Error sending ack: " + ex.getMessage());
+            }
+        }
+
+        private void beginFragmenting() {
+            synchronized (fragmentLock) {
+                isFragmenting = true;
+            }
+        }
+
+        private void endFragmenting() {
+            synchronized (fragmentLock) {
+                isFragmenting = false;
+                if (isAckDeferred) {
+                    isAckDeferred = false;
+                    writeAck(receiveWindow.getAcknowledged());
+                }
+            }
+        }
+
+        private void recordUpload(WSPacket packet) {
+            if (packet.uploadHash != null) {
+                uploadIndex.add(packet.uploadHash);
+            }
+        }
+
+        // Must be called with the lock held. At most one drain task per client is pending or running.
+        private void scheduleDrain() {
+            // A lingering batch leaves as soon as it is complete.
+            if (lingerTask != null && batchWaitNanos() == 0 && lingerTask.cancel(false)) {
+                lingerTask = null;
+                isDraining = false;
+            }
+            if (!isDraining && !isClosed && firstNonEmptyLane() >= 0 && webSocketClient.isOpen()) {
+                isDraining = true;
+                try {
+                    runtime.executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    isDraining = false;
+                    logger.e(TAG, "(SEND) / The runtime rejected the send task: " + ex.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            drain(false);
+        }
+
+        private void drain(boolean isUploadThread) {
+            try {
+                while (true) {
+                    WSPacket packet;
+                    int lane;
+                    List<WSPacket> batch = null;
+                    synchronized (this) {
+                        lingerTask = null;
+                        lane = firstNonEmptyLane();
+                        if (lane < 0 || isClosed || !webSocketClient.isOpen() || isAwaitingResume
+                                || (options.reliableDelivery && unacknowledged.size() >= options.reliableWindow)) {
+                            // A full window is drained again by the next ack, a new connection by the verification.
+                            isDraining = false;
+                            notifyAll();
+                            return;
+                        }
+                        if (options.batchMaxBytes > 0) {
+                            long waitNanos = batchWaitNanos();
+                            if (waitNanos > 0) {
+                                // Keep the drain flag, the linger task takes over.
+                                lingerTask = runtime.executor.schedule(this, waitNanos, TimeUnit.NANOSECONDS);
+                                return;
+                            }
+                            batch = pollBatch();
+                        }
+                        packet = batch == null ? packetQueues[lane].poll() : null;
+                        if (packet != null) {
+                            packet.lane = lane;
+                            assignSequence(packet);
+                        } else {
+                            for (WSPacket batched : batch) {
+                                assignSequence(batched);
+                            }
+                        }
+                        metrics.recordQueueDepth(batch == null ? -1 : -batch.size());
+                        // Wake up producers blocked on a full lane.
+                        notifyAll();
+                    }
+
+                    if (batch != null) {
+                        if (sendBatch(batch)) {
+                            for (WSPacket sent : batch) {
+                                onSent(sent);
+                            }
+                            continue;
+                        }
+                        synchronized (this) {
+                            if (isClosed) {
+                                for (WSPacket unsent : batch) {
+                                    release(unsent);
+                                }
+                                isDraining = false;
+                                notifyAll();
+                                return;
+                            }
+                            int requeued = 0;
+                            for (int i = batch.size() - 1; i >= 0; i--) {
+                                WSPacket unsent = batch.get(i);
+                                if (takeBackUnsent(unsent)) {
+                                    packetQueues[unsent.lane].offerFirst(unsent);
+                                    requeued++;
+                                }
+                            }
+                            metrics.recordQueueDepth(requeued);
+                            runtime.executor.schedule(this, 500, TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                    }
+
+                    if (packet.fileSource != null && !isUploadThread) {
+                        // An upload waits for each chunk to leave, the drain moves to an upload thread so that the
+                        // runtime threads shared by the clients are not held.
+                        startUpload(packet, lane);
+                        return;
+                    }
+                    // The lock is only held to pick the packet, so a critical packet queued during a send goes next.
+                    if (!sendPicked(packet, lane)) {
+                        return;
+                    }
+                }
+            } catch (Exception ex) {
+                logger.e(TAG, "(SEND) / Error: " + ex.getMessage());
+                synchronized (this) {
+                    isDraining = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until the queue is sent, the socket closes or the deadline passes, then rejects new packets.
+         * Packets still queued are dropped from memory but stay in the outbox, if there is one.
+         */
+        private synchronized boolean close(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + Math.max(0, timeoutMs);
+            long remaining;
+            while ((firstNonEmptyLane() >= 0 || isDraining || !unacknowledged.isEmpty()) && webSocketClient.isOpen()
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            boolean drained = firstNonEmptyLane() < 0 && !isDraining && unacknowledged.isEmpty();
+            isClosed = true;
+            unacknowledged.clear();
+            for (Deque<WSPacket> lane : packetQueues) {
+                WSPacket packet;
+                while ((packet = lane.poll()) != null) {
+                    metrics.recordQueueDepth(-1);
+                    release(packet);
+                }
+            }
+            notifyAll();
+            return drained;
+        }
+
+        // Returns false when the packet went back to its lane, the retry task then takes over the drain.
+        private boolean sendPicked(WSPacket packet, int lane) {
+            if (sendWithRetry(packet)) {
+                onSent(packet);
+                return true;
+            }
+            synchronized (this) {
+                if (isClosed) {
+                    release(packet);
+                    isDraining = false;
+                    notifyAll();
+                    return false;
+                }
+                if (takeBackUnsent(packet)) {
+                    packetQueues[lane].offerFirst(packet);
+                    metrics.recordQueueDepth(1);
+                }
+                // Keep the drain flag, the retry task takes over.
+                runtime.executor.schedule(this, 500, TimeUnit.MILLISECONDS);
+                return false;
+            }
+        }
+
+        // Keeps the drain flag, the upload thread goes on draining the queue after the upload.
+        private void startUpload(WSPacket packet, int lane) {
+            try {
+                runtime.uploadExecutor().execute(() -> {
+                    if (sendPicked(packet, lane)) {
+                        drain(true);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                logger.e(TAG, "(SEND) / The runtime rejected the upload task: " + ex.getMessage());
+                synchronized (this) {
+                    packetQueues[lane].offerFirst(packet);
+                    metrics.recordQueueDepth(1);
+                    isDraining = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        private boolean isBatchable(WSPacket packet) {
+            return packet.fileSource == null && 4 + WSUtils.frameSize(packet) <= options.batchMaxBytes;
+        }
+
+        /**
+         * With the lock held: 0 when the packets at the head of the queue should be sent now, otherwise how long
+         * the oldest of them may still wait for more packets to fill the batch. A critical packet, a packet that
+         * cannot be batched or a full batch is sent at once.
+         */
+        private long batchWaitNanos() {
+            if (!packetQueues[WSPriority.CRITICAL.ordinal()].isEmpty()) {
+                return 0;
+            }
+            long bytes = 5;
+            long oldest = Long.MAX_VALUE;
+            for (Deque<WSPacket> lane : packetQueues) {
+                for (WSPacket packet : lane) {
+                    if (!isBatchable(packet)) {
+                        return 0;
+                    }
+                    bytes += 4 + WSUtils.frameSize(packet);
+                    if (bytes > options.batchMaxBytes) {
+                        return 0;
+                    }
+                    oldest = Math.min(oldest, packet.enqueuedAtNanos);
+                }
+            }
+            if (oldest == Long.MAX_VALUE) {
+                return 0;
+            }
+            long waited = System.nanoTime() - oldest;
+            return Math.max(0, TimeUnit.MILLISECONDS.toNanos(options.batchLingerMs) - waited);
+        }
+
+        // With the lock held: takes the batchable packets at the head of the lanes, in priority order, while they
+        // fit in the batch. Returns null when there are less than two, the head packet is then sent alone.
+        private List<WSPacket> pollBatch() {
+            long bytes = 5;
+            int count = 0;
+            search:
+            for (Deque<WSPacket> lane : packetQueues) {
+                for (WSPacket packet : lane) {
+                    long size = 4 + WSUtils.frameSize(packet);
+                    if (!isBatchable(packet) || bytes + size > options.batchMaxBytes) {
+                        break search;
+                    }
+                    bytes += size;
+                    count++;
+                }
+            }
+            if (count < 2) {
+                return null;
+            }
+            List<WSPacket> batch = new ArrayList<>(count);
+            for (int lane = 0; lane < packetQueues.length && batch.size() < count; lane++) {
+                while (!packetQueues[lane].isEmpty() && batch.size() < count) {
+                    WSPacket packet = packetQueues[lane].poll();
+                    packet.lane = lane;
+                    batch.add(packet);
+                }
+            }
+            return batch;
+        }
+
+        // Sends the packets as one frame: a type 254 envelope without metadata holding [int length][packet] entries.
+        private boolean sendBatch(List<WSPacket> batch) {
+            try {
+                int frameSize = 5;
+                for (int i = 0; i < batch.size(); i++) {
+                    WSPacket packet = batch.get(i);
+                    if ((packet.flags & WSUtils.FLAG_METADATA_BINARY) != 0 && activeCodec == WSCodec.JSON) {
+                        WSPacket transcoded = transcodeToJson(packet);
+                        batch.set(i, transcoded);
+                        packet = transcoded;
+                    }
+                    logPacketInfo(packet);
+                    frameSize += 4 + WSUtils.frameSize(packet);
+                }
+                byte[] frame = runtime.bufferPool.acquire(frameSize);
+                try {
+                    int offset = WSUtils.writePacket(WSUtils.TYPE_BATCH, 0, 0, WSUtils.EMPTY_BUFFER, frame, 0);
+                    for (WSPacket packet : batch) {
+                        int length = WSUtils.frameSize(packet);
+                        frame[offset] = (byte) (length >> 24);
+                        frame[offset + 1] = (byte) (length >> 16);
+                        frame[offset + 2] = (byte) (length >> 8);
+                        frame[offset + 3] = (byte) length;
+                        offset = WSUtils.writePacket(packet, frame, offset + 4);
+                    }
+                    webSocketClient.send(ByteBuffer.wrap(frame, 0, frameSize));
+                } finally {
+                    runtime.bufferPool.release(frame);
+                }
+                for (WSPacket packet : batch) {
+                    metrics.recordSent(4 + WSUtils.frameSize(packet), packet.enqueuedAtNanos);
+                }
+                return true;
+            } catch (Exception ex) {
+                logger.e(TAG, "(SEND) / Error sending batch: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        private int firstNonEmptyLane() {
+            for (int i = 0; i < packetQueues.length; i++) {
+                if (!packetQueues[i].isEmpty()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void release(WSPacket packet) {
+            if (packet.fileSource != null) {
+                packet.fileSource.release();
+            }
+        }
+
+        private void discard(WSPacket packet) {
+            release(packet);
+            acknowledge(packet);
+        }
+
+        private void acknowledge(WSPacket packet) {
+            if (outbox != null && packet.outboxId >= 0) {
+                outbox.acknowledge(packet.outboxId);
+                packet.outboxId = -1;
+            }
+        }
+
+        private boolean sendWithRetry(WSPacket packet) {
+            try {
+                if ((packet.flags & WSUtils.FLAG_METADATA_BINARY) != 0 && activeCodec == WSCodec.JSON) {
+                    packet = transcodeToJson(packet);
+                }
+                logPacketInfo(packet);
+                if (packet.fileSource != null) {
+                    long size = 5L + packet.getDataSize() + packet.fileSource.size;
+                    boolean sent;
+                    beginFragmenting();
+                    try {
+                        sent = sendFragmented(packet, packet.fileSource);
+                    } finally {
+                        endFragmenting();
+                    }
+                    if (sent) {
+                        metrics.recordSent(size, packet.enqueuedAtNanos);
+                    }
+                    return sent;
+                }
+                int frameSize = WSUtils.frameSize(packet);
+                byte[] frame = runtime.bufferPool.acquire(frameSize);
+                try {
+                    WSUtils.writePacket(packet, frame, 0);
+                    // Java-WebSocket masks the payload into a frame buffer of its own before send returns,
+                    // so the array goes back to the pool right away.
+                    webSocketClient.send(ByteBuffer.wrap(frame, 0, frameSize));
+                } finally {
+                    runtime.bufferPool.release(frame);
+                }
+                metrics.recordSent(frameSize, packet.enqueuedAtNanos);
+                return true;
+            } catch (Exception ex) {
+                logger.e(TAG, "(SEND) / Error sending packet: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        // Writes the header and metadata as the first fragment and then the file in chunks. Chunks are read into
+        // one reused buffer (or are slices of the mapped file), so the heap used by an upload does not depend on
+        // the file size.
+        private boolean sendFragmented(WSPacket packet, WSFileSource source) {
+            long total = source.size;
+            long sent = 0;
+            int headerSize = WSUtils.frameSize(packet);
+            byte[] header = runtime.bufferPool.acquire(headerSize);
+            try {
+                WSUtils.writePacket(packet, header, 0);
+                webSocketClient.sendFragmentedFrame(Opcode.BINARY, ByteBuffer.wrap(header, 0, headerSize), total == 0);
+            } finally {
+                runtime.bufferPool.release(header);
+            }
+            try {
+                while (sent < total) {
+                    ByteBuffer chunk;
+                    try {
+                        chunk = source.read(sent, options.uploadChunkSize);
+                    } catch (IOException ex) {
+                        // The message is already partially on the wire and cannot be completed.
+                        logger.e(TAG, "(SEND) / Error reading file: " + ex.getMessage());
+                        source.release();
+                        webSocketClient.close(1011, "Upload failed");
+                        WSClient.this.onError(ex);
+                        return true;
+                    }
+                    sent += chunk.remaining();
+                    webSocketClient.sendFragmentedFrame(Opcode.BINARY, chunk, sent == total);
+                    awaitFlushed();
+                    source.notifyProgress(WSClient.this, sent);
+                }
+            } finally {
+                source.close();
+            }
+            if (total == 0) {
+                source.notifyProgress(WSClient.this, 0);
+            }
+            source.release();
+            return true;
+        }
+
+        // Java-WebSocket queues written frames without limit and has no flush callback, wait on the upload thread
+        // for the previous chunk to leave before reading the next one so that at most a couple of chunks are held
+        // in memory.
+        private void awaitFlushed() {
+            while (webSocketClient.hasBufferedData() && webSocketClient.isOpen()) {
+                WSUtils.sleep(5);
+            }
+        }
+
+        private void logPacketInfo(WSPacket packet) {
+            if (logger.isLoggable(WSLogger.VERBOSE)) {
+                logger.log(WSLogger.VERBOSE, TAG, describePacket("(SEND)", packet), null);
+            }
+        }
+    }
+
+    public static class WSOptions {
+        private String url;
+        private String protocol;
+        private boolean debugMode;
+        private int connectTimeoutMs;
+        private int reconnectIntervalMs;
+        private int reconnectMaxIntervalMs;
+        private double reconnectBackoffMultiplier;
+        private boolean reconnectJitter;
+        private int reconnectMaxAttempts;
+        private int pingAttemptCount;
+        private int pingIntervalMs;
+        private int pingMinTimeoutMs;
+        private int pingMaxTimeoutMs;
+        private boolean adaptivePing;
+        private int pingMinIntervalMs;
+        private int pingMaxIntervalMs;
+        private int uploadChunkSize;
+        private boolean memoryMappedUploads;
+        private File outboxDirectory;
+        private int outboxSegmentSize;
+        private WSRuntime runtime;
+        private WSLogger logger;
+        private int debugPreviewBytes;
+        private boolean perMessageDeflate;
+        private boolean packetCompression;
+        private int compressionLevel;
+        private int compressionMinSize;
+        private byte[] compressionDictionary;
+        private WSCodec codec;
+        private boolean dropUnroutedPackets;
+        private Executor dispatchExecutor;
+        private int dispatchQueueCapacity;
+        private WSOverflowPolicy dispatchOverflowPolicy;
+        private boolean coalescePingEvents;
+        private int maxMessageSize;
+        private long streamingThreshold;
+        private WSFileSink fileSink;
+        private File receiveDirectory;
+        private int batchLingerMs;
+        private int batchMaxBytes;
+        private boolean reliableDelivery;
+        private int reliableWindow;
+        private File uploadIndexFile;
+        private long treeHashMinSize;
+        private int treeHashLeafSize;
+        private int uploadIndexSize;
+        private int uploadQueryTimeoutMs;
+        private final int[] queueCapacity = {256, 1024, 64};
+        private final WSOverflowPolicy[] queueOverflowPolicy = {WSOverflowPolicy.FAIL_FAST, WSOverflowPolicy.DROP_OLDEST, WSOverflowPolicy.FAIL_FAST};
+
+        private WSOptions() {
+            debugMode = false;
+            uploadChunkSize = 64 * 1024;
+            outboxSegmentSize = 4 * 1024 * 1024;
+            debugPreviewBytes = 256;
+            compressionLevel = Deflater.DEFAULT_COMPRESSION;
+            compressionMinSize = 256;
+            codec = WSCodec.JSON;
+            dispatchQueueCapacity = 1024;
+            dispatchOverflowPolicy = WSOverflowPolicy.DROP_OLDEST;
+            coalescePingEvents = true;
+            maxMessageSize = 64 * 1024 * 1024;
+            reconnectIntervalMs = 5000;
+            reconnectMaxIntervalMs = 60000;
+            reconnectBackoffMultiplier = 2.0;
+            reconnectJitter = true;
+            pingAttemptCount = 5;
+            pingIntervalMs = 3000;
+            pingMinTimeoutMs = 1000;
+            pingMaxTimeoutMs = 5000;
+            connectTimeoutMs = 5000;
+        }
+
+        public WSOptions setUrl(String url) {
+            this.url = url;
+            return this;
+        }
+
+        public WSOptions setConnectTimeoutMs(int connectTimeoutMs) {
+            this.connectTimeoutMs = connectTimeoutMs;
+            return this;
+        }
+
+        public WSOptions setProtocol(String protocol) {
+            this.protocol = protocol;
+            return this;
+        }
+
+        public WSOptions setDebugMode(boolean debugMode) {
+            this.debugMode = debugMode;
+            return this;
+        }
+
+        public WSOptions setReconnectIntervalMs(int reconnectIntervalMs) {
+            this.reconnectIntervalMs = reconnectIntervalMs;
+            return this;
+        }
+
+        /**
+         * The delay before the n-th consecutive reconnect attempt is {@code reconnectIntervalMs * multiplier^n},
+         * capped at {@code maxIntervalMs}. A multiplier of 1 keeps a fixed interval.
+         */
+        public WSOptions setReconnectBackoff(int maxIntervalMs, double multiplier) {
+            this.reconnectMaxIntervalMs = maxIntervalMs;
+            this.reconnectBackoffMultiplier = Math.max(1.0, multiplier);
+            return this;
+        }
+
+        /**
+         * With full jitter the actual delay is a random value between 0 and the backoff delay, which spreads the
+         * reconnects of clients disconnected at the same moment (e.g. by a server restart).
+         */
+        public WSOptions setReconnectJitter(boolean reconnectJitter) {
+            this.reconnectJitter = reconnectJitter;
+            return this;
+        }
+
+        /**
+         * Maximum number of consecutive reconnect attempts, 0 for no limit.
+         */
+        public WSOptions setReconnectMaxAttempts(int reconnectMaxAttempts) {
+            this.reconnectMaxAttempts = reconnectMaxAttempts;
+            return this;
+        }
+
+        /**
+         * Bounds of the ping timeout, which is otherwise computed from the measured RTT.
+         */
+        public WSOptions setPingTimeout(int minTimeoutMs, int maxTimeoutMs) {
+            this.pingMinTimeoutMs = minTimeoutMs;
+            this.pingMaxTimeoutMs = Math.max(minTimeoutMs, maxTimeoutMs);
+            return this;
+        }
+
+        /**
+         * Enables the adaptive heartbeat: no ping while messages are received, and an interval growing from
+         * {@code minIntervalMs} to {@code maxIntervalMs} while the connection is idle. Replaces the fixed interval.
+         */
+        public WSOptions setAdaptivePing(int minIntervalMs, int maxIntervalMs) {
+            this.adaptivePing = true;
+            this.pingMinIntervalMs = minIntervalMs;
+            this.pingMaxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+            return this;
+        }
+
+        /**
+         * Number of pings lost in a row after which the connection is closed with 3001.
+         */
+        public WSOptions setPingAttemptCount(int pingAttemptCount) {
+            this.pingAttemptCount = pingAttemptCount;
+            return this;
+        }
+
+        public WSOptions setPingIntervalMs(int pingIntervalMs) {
+            this.pingIntervalMs = pingIntervalMs;
+            return this;
+        }
+
+        public WSOptions setUploadChunkSize(int uploadChunkSize) {
+            this.uploadChunkSize = Math.max(1024, uploadChunkSize);
+            return this;
+        }
+
+        public WSOptions setMemoryMappedUploads(boolean memoryMappedUploads) {
+            this.memoryMappedUploads = memoryMappedUploads;
+            return this;
+        }
+
+        /**
+         * At-least-once delivery, the server has to support it. Packets carry a sequence number, at most
+         * {@code windowSize} of them wait for the server cumulative ack (type 253) and they are sent again after a
+         * reconnect. Sequenced packets from the server are acknowledged the same way and their duplicates dropped.
+         * Streamed file packets are not sequenced.
+         */
+        public WSOptions setReliableDelivery(boolean reliableDelivery, int windowSize) {
+            this.reliableDelivery = reliableDelivery;
+            this.reliableWindow = Math.max(1, windowSize);
+            return this;
+        }
+
+        /**
+         * Files of at least {@code minSize} bytes are tree hashed, 0 (the default) disables it: leaves of
+         * {@code leafSize} bytes, at least 64 KiB, are hashed in parallel and "file_hash" is the SHA-256 of their
+         * concatenated digests. The leaf size is sent as "file_hash_leaf", the server has to support it. Streams are
+         * not tree hashed, their size is not known in advance. Received files with a smaller leaf size are refused.
+         */
+        public WSOptions setTreeHashing(long minSize, int leafSize) {
+            this.treeHashMinSize = Math.max(0, minSize);
+            this.treeHashLeafSize = Math.max(WSHasher.MIN_LEAF_SIZE, leafSize);
+            return this;
+        }
+
+        /**
+         * Hash-first uploads, the server has to support it. The hashes of the uploaded files are kept in a persistent
+         * LRU index of up to {@code maxEntries} entries, a file found in the index is announced by its hash and its
+         * content is only uploaded if the server does not have it or does not answer within the timeout.
+         */
+        public WSOptions setUploadDedup(File indexFile, int maxEntries, int queryTimeoutMs) {
+            this.uploadIndexFile = indexFile;
+            this.uploadIndexSize = Math.max(1, maxEntries);
+            this.uploadQueryTimeoutMs = Math.max(0, queryTimeoutMs);
+            return this;
+        }
+
+        /**
+         * Sends the small packets queued together as one frame, a type 254 envelope the server has to unpack.
+         * A packet waits up to the linger time for others to fill the batch, a full batch, a critical packet or a
+         * file packet flushes it. A max size of 0 (the default) disables batching.
+         */
+        public WSOptions setBatching(int lingerMs, int maxBytes) {
+            this.batchLingerMs = Math.max(0, lingerMs);
+            this.batchMaxBytes = Math.max(0, maxBytes);
+            return this;
+        }
+
+        /**
+         * Received messages larger than this close the connection with 1009 instead of being buffered, 64 MiB by
+         * default. Streamed messages are limited too.
+         */
+        public WSOptions setMaxMessageSize(int maxMessageSize) {
+            this.maxMessageSize = Math.max(1024, maxMessageSize);
+            return this;
+        }
+
+        /**
+         * Fragmented messages growing over the threshold have their file data streamed to the sink instead of
+         * being assembled in memory, 0 (the default) disables streaming. A null sink, or a sink returning null,
+         * writes the file data to a temporary file in the directory (the default temporary directory if null).
+         */
+        public WSOptions setStreamingReceive(long streamingThreshold, WSFileSink fileSink, File receiveDirectory) {
+            this.streamingThreshold = Math.max(0, streamingThreshold);
+            this.fileSink = fileSink;
+            this.receiveDirectory = receiveDirectory;
+            return this;
+        }
+
+        public WSOptions setQueueCapacity(WSPriority priority, int capacity, WSOverflowPolicy overflowPolicy) {
+            this.queueCapacity[priority.ordinal()] = Math.max(1, capacity);
+            this.queueOverflowPolicy[priority.ordinal()] = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Enables the persistent outbox: queued packets are journaled in this directory and are sent again by
+         * the next client created with the same directory if the process stops before they leave. One client at a
+         * time can use the directory, the others run without an outbox.
+         */
+        public WSOptions setOutboxDirectory(File outboxDirectory) {
+            this.outboxDirectory = outboxDirectory;
+            return this;
+        }
+
+        public WSOptions setOutboxSegmentSize(int outboxSegmentSize) {
+            this.outboxSegmentSize = Math.max(64 * 1024, outboxSegmentSize);
+            return this;
+        }
+
+        /**
+         * Runtime that runs the ping, send and reconnect work of the client, {@link WSRuntime#getDefault()} if not set.
+         */
+        public WSOptions setRuntime(WSRuntime runtime) {
+            this.runtime = runtime;
+            return this;
+        }
+
+        /**
+         * Logger of the client. By default packets are logged (at VERBOSE) only in debug mode, other events at DEBUG.
+         */
+        public WSOptions setLogger(WSLogger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        /**
+         * Number of bytes of the packet data shown in debug mode, the rest is summarised by its size.
+         */
+        public WSOptions setDebugPreviewBytes(int debugPreviewBytes) {
+            this.debugPreviewBytes = Math.max(0, debugPreviewBytes);
+            return this;
+        }
+
+        /**
+         * Offers the permessage-deflate extension in the handshake, every frame is then compressed by the socket.
+         * Do not combine with packet compression.
+         */
+        public WSOptions setPerMessageDeflate(boolean perMessageDeflate) {
+            this.perMessageDeflate = perMessageDeflate;
+            return this;
+        }
+
+        /**
+         * Compresses the metadata and the file content of packets of at least {@code minSize} bytes, and sets the
+         * compression flags in the packet header. The server must support the flags.
+         */
+        public WSOptions setPacketCompression(boolean packetCompression, int minSize) {
+            this.packetCompression = packetCompression;
+            this.compressionMinSize = Math.max(0, minSize);
+            return this;
+        }
+
+        public WSOptions setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        /**
+         * Preset deflate dictionary for the metadata, typically the keys and values frequent in the JSON packets.
+         * The server must use the same dictionary.
+         */
+        public WSOptions setCompressionDictionary(byte[] compressionDictionary) {
+            this.compressionDictionary = compressionDictionary;
+            return this;
+        }
+
+        /**
+         * Metadata codec offered to the server through Sec-WebSocket-Protocol, for example {@link WSCodec#MSGPACK}.
+         * JSON is used when the server does not select it.
+         */
+        public WSOptions setCodec(WSCodec codec) {
+            this.codec = codec == null ? WSCodec.JSON : codec;
+            return this;
+        }
+
+        /**
+         * When packet handlers are registered, drops the packets no handler is registered for instead of passing
+         * them to {@link WSEvents#onReceivedPacket}.
+         */
+        public WSOptions setDropUnroutedPackets(boolean dropUnroutedPackets) {
+            this.dropUnroutedPackets = dropUnroutedPackets;
+            return this;
+        }
+
+        /**
+         * Executor running the event callbacks and packet handlers, the dispatch thread of the runtime by default. The callbacks
+         * are called one at a time, in order, whatever the executor. A direct executor ({@code Runnable::run}) runs
+         * them on the socket threads as before.
+         */
+        public WSOptions setDispatchExecutor(Executor dispatchExecutor) {
+            this.dispatchExecutor = dispatchExecutor;
+            return this;
+        }
+
+        /**
+         * Bounds the received packet, error and ping events waiting for their callback, 1024 by default. When it is
+         * full, DROP_OLDEST (the default) drops the oldest waiting event, FAIL_FAST drops the new one and BLOCK holds
+         * the socket reader until the callbacks catch up. Connection events, terminal errors and the sequenced packets
+         * of the reliable mode are never dropped and do not count.
+         */
+        public WSOptions setDispatchQueue(int capacity, WSOverflowPolicy overflowPolicy) {
+            this.dispatchQueueCapacity = Math.max(1, capacity);
+            this.dispatchOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Reports only the latest ping time when the callback falls behind.
+         */
+        public WSOptions setCoalescePingEvents(boolean coalescePingEvents) {
+            this.coalescePingEvents = coalescePingEvents;
+            return this;
+        }
+
+        public static WSOptions init() {
+            return new WSOptions();
+        }
+    }
+
+    /**
+     * Executor shared by many clients for their ping, send and reconnect tasks, no client starts threads of its own
+     * (apart from the socket thread of Java-WebSocket). Tasks are short. File hashing runs on a separate pool, created
+     * on first use with one thread per core, and file uploads on another one, with a thread per upload in progress.
+     * The event callbacks of all the clients run on a single dispatch thread, so slow application code never holds
+     * up the ping, send and reconnect tasks.
+     */
+    public static class WSRuntime {
+        private static WSRuntime defaultRuntime;
+        private final ScheduledExecutorService executor;
+        private final WSBufferPool bufferPool = new WSBufferPool();
+        private final boolean isOwned;
+        private ThreadPoolExecutor hashExecutor;
+        private ThreadPoolExecutor uploadExecutor;
+        private ThreadPoolExecutor dispatchExecutor;
+
+        private WSRuntime(ScheduledExecutorService executor, boolean isOwned) {
+            this.executor = executor;
+            this.isOwned = isOwned;
+        }
+
+        public static synchronized WSRuntime getDefault() {
+            if (defaultRuntime == null) {
+                defaultRuntime = create(Math.max(2, Runtime.getRuntime().availableProcessors()));
+            }
+            return defaultRuntime;
+        }
+
+        /**
+         * Creates a runtime with its own pool of daemon threads, idle threads are released after 30 seconds.
+         */
+        public static WSRuntime create(int threadCount) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1, threadCount), runnable -> {
+                Thread thread = new Thread(runnable, "WSRuntime-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            return new WSRuntime(executor, true);
+        }
+
+        /**
+         * Uses an executor owned by the application, {@link #shutdown()} leaves it running.
+         */
+        public static WSRuntime wrap(ScheduledExecutorService executor) {
+            return new WSRuntime(executor, false);
+        }
+
+        public void shutdown() {
+            synchronized (WSRuntime.class) {
+                if (defaultRuntime == this) {
+                    defaultRuntime = null;
+                }
+            }
+            if (isOwned) {
+                executor.shutdown();
+            }
+            synchronized (this) {
+                if (hashExecutor != null) {
+                    hashExecutor.shutdown();
+                }
+                if (uploadExecutor != null) {
+                    uploadExecutor.shutdown();
+                }
+                if (dispatchExecutor != null) {
+                    dispatchExecutor.shutdown();
+                }
+            }
+        }
+
+        // Hashing tasks block on file reads, they are kept off the scheduled executor.
+        private synchronized Executor hashExecutor() {
+            if (hashExecutor == null) {
+                int threadCount = Runtime.getRuntime().availableProcessors();
+                AtomicInteger threadNumber = new AtomicInteger();
+                hashExecutor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "WSHash-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                hashExecutor.allowCoreThreadTimeOut(true);
+            }
+            return hashExecutor;
+        }
+
+        // Uploads block until the socket has written each chunk, one thread per upload in progress.
+        private synchronized Executor uploadExecutor() {
+            if (uploadExecutor == null) {
+                AtomicInteger threadNumber = new AtomicInteger();
+                uploadExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "WSUpload-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return uploadExecutor;
+        }
+
+        // Application callbacks may block, they are kept off the scheduled executor. The thread is released when idle.
+        private synchronized Executor dispatchExecutor() {
+            if (dispatchExecutor == null) {
+                AtomicInteger threadNumber = new AtomicInteger();
+                dispatchExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "WSDispatch-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                dispatchExecutor.allowCoreThreadTimeOut(true);
+            }
+            return dispatchExecutor;
+        }
+    }
+
+    /**
+     * Byte arrays in power of two size classes from 1 KiB to 256 KiB, used for the frames written to the socket and
+     * the outbox records. Each class keeps a few free arrays in lock-free slots; larger arrays are not pooled and an
+     * array released to a full class is left to the GC.
+     */
+    // Package-private for the benchmark module.
+    static class WSBufferPool {
+        private static final int MIN_SHIFT = 10;
+        private static final int MAX_SHIFT = 18;
+        private static final int SLOTS_PER_CLASS = 4;
+        private final AtomicReferenceArray<byte[]> slots = new AtomicReferenceArray<>((MAX_SHIFT - MIN_SHIFT + 1) * SLOTS_PER_CLASS);
+
+        // The returned array may be larger than the requested size.
+        byte[] acquire(int size) {
+            int sizeClass = sizeClass(size);
+            if (sizeClass < 0) {
+                return new byte[size];
+            }
+            int first = sizeClass * SLOTS_PER_CLASS;
+            for (int i = first; i < first + SLOTS_PER_CLASS; i++) {
+                byte[] buffer = slots.get(i) == null ? null : slots.getAndSet(i, null);
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return new byte[1 << (sizeClass + MIN_SHIFT)];
+        }
+
+        void release(byte[] buffer) {
+            int sizeClass = sizeClass(buffer.length);
+            if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SHIFT)) {
+                return;
+            }
+            int first = sizeClass * SLOTS_PER_CLASS;
+            for (int i = first; i < first + SLOTS_PER_CLASS; i++) {
+                if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+                    return;
+                }
+            }
+        }
+
+        private static int sizeClass(int size) {
+            if (size > 1 << MAX_SHIFT) {
+                return -1;
+            }
+            int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+            return Math.max(MIN_SHIFT, shift) - MIN_SHIFT;
+        }
+    }
+
+    /**
+     * SHA-256 of the file contents. The digests are kept per thread for the short hashing calls. A file is hashed
+     * while its next chunk is read on the hash executor. The tree hash splits the input in leaves hashed in parallel,
+     * the root is the SHA-256 of the concatenated leaf digests. A task that has not started when its result is
+     * needed runs on the waiting thread, so hashing never waits for a busy executor.
+     * Package-private for the benchmark module.
+     */
+    static class WSHasher {
+        private static final String LEAF_SIZE_KEY = "file_hash_leaf";
+        private static final int MIN_LEAF_SIZE = 64 * 1024;
+        private static final int DIGEST_SIZE = 32;
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+        private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(WSHasher::newDigest);
+
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // The digest of the calling thread, it must not be kept across calls that may hash too.
+        private static MessageDigest digest() {
+            MessageDigest digest = DIGESTS.get();
+            digest.reset();
+            return digest;
+        }
+
+        static String toHex(byte[] bytes) {
+            char[] chars = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+                chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+            }
+            return new String(chars);
+        }
+
+        static String sha256(byte[] data) {
+            MessageDigest digest = digest();
+            digest.update(data);
+            return toHex(digest.digest());
+        }
+
+        private static String sha256(FileChannel channel, long position, long size, int chunkSize, Executor executor) throws IOException {
+            MessageDigest digest = digest();
+            int capacity = (int) Math.min(chunkSize, Math.max(1, size));
+            ByteBuffer current = ByteBuffer.allocate(capacity);
+            ByteBuffer next = ByteBuffer.allocate(capacity);
+            WSReadAhead read = new WSReadAhead(channel, current, position, size);
+            long offset = 0;
+            while (true) {
+                read.await();
+                offset += current.remaining();
+                WSReadAhead readAhead = null;
+                if (offset < size) {
+                    readAhead = new WSReadAhead(channel, next, position + offset, size - offset);
+                    readAhead.submit(executor);
+                }
+                digest.update(current);
+                if (readAhead == null) {
+                    return toHex(digest.digest());
+                }
+                ByteBuffer digested = current;
+                current = next;
+                next = digested;
+                read = readAhead;
+            }
+        }
+
+        // Package-private for the benchmark module.
+        static String treeHash(WSHashInput input, long size, int leafSize, Executor executor) throws IOException {
+            int leafCount = (int) Math.max(1, (size + leafSize - 1) / leafSize);
+            byte[] leafDigests = new byte[leafCount * DIGEST_SIZE];
+            AtomicInteger nextLeaf = new AtomicInteger();
+            CountDownLatch remaining = new CountDownLatch(leafCount);
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            Runnable worker = () -> {
+                int leaf;
+                while ((leaf = nextLeaf.getAndIncrement()) < leafCount) {
+                    try {
+                        if (failure.get() == null) {
+                            long offset = (long) leaf * leafSize;
+                            MessageDigest digest = digest();
+                            input.update(digest, offset, (int) Math.min(leafSize, size - offset));
+                            digest.digest(leafDigests, leaf * DIGEST_SIZE, DIGEST_SIZE);
+                        }
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        remaining.countDown();
+                    }
+                }
+            };
+            int helperCount = Math.min(leafCount, Runtime.getRuntime().availableProcessors()) - 1;
+            try {
+                for (int i = 0; i < helperCount; i++) {
+                    executor.execute(worker);
+                }
+            } catch (RejectedExecutionException ignored) {
+                // The calling thread hashes the leaves left.
+            }
+            worker.run();
+            try {
+                // Only the leaves taken by running helpers are left.
+                remaining.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing");
+            }
+            Exception error = failure.get();
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw new IOException(error);
+            }
+            MessageDigest root = digest();
+            root.update(leafDigests);
+            return toHex(root.digest());
+        }
+
+        static WSHashInput input(byte[] data) {
+            return (digest, offset, length) -> digest.update(data, (int) offset, length);
+        }
+
+        // Positional reads, the channel can be read by several threads at once.
+        private static WSHashInput input(FileChannel channel, long position) {
+            return (digest, offset, length) -> {
+                ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+                long end = offset + length;
+                while (offset < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                    WSUtils.readFully(channel, buffer, position + offset);
+                    buffer.flip();
+                    offset += buffer.remaining();
+                    digest.update(buffer);
+                }
+            };
+        }
+
+        interface WSHashInput {
+            void update(MessageDigest digest, long offset, int length) throws IOException;
+        }
+
+        // Reads up to a buffer of the channel, on the executor or on the thread that waits for it.
+        private static class WSReadAhead implements Runnable {
+            private final AtomicBoolean isClaimed = new AtomicBoolean();
+            private final CountDownLatch done = new CountDownLatch(1);
+            private final FileChannel channel;
+            private final ByteBuffer buffer;
+            private final long position;
+            private final long remaining;
+            private IOException error;
+
+            private WSReadAhead(FileChannel channel, ByteBuffer buffer, long position, long remaining) {
+                this.channel = channel;
+                this.buffer = buffer;
+                this.position = position;
+                this.remaining = remaining;
+            }
+
+            private void submit(Executor executor) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ignored) {
+                    // Read by await().
+                }
+            }
+
+            @Override
+            public void run() {
+                if (!isClaimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    WSUtils.readFully(channel, buffer, position);
+                    buffer.flip();
+                } catch (IOException ex) {
+                    error = ex;
+                } finally {
+                    done.countDown();
+                }
+            }
+
+            private void await() throws IOException {
+                run();
+                try {
+                    done.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while hashing");
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+        }
+    }
+
+    /**
+     * Incremental SHA-256 of received file data, or its tree hash with a leaf size: the same value as
+     * {@link WSHasher#treeHash} computed in one pass.
+     */
+    private static class WSFileDigest {
+        private final MessageDigest digest = WSHasher.newDigest();
+        private final MessageDigest root;
+        private final int leafSize;
+        private long leafFilled;
+        private long leafCount;
+
+        private WSFileDigest(int leafSize) {
+            this.leafSize = leafSize;
+            this.root = leafSize > 0 ? WSHasher.newDigest() : null;
+        }
+
+        private void update(byte[] data, int offset, int length) {
+            if (root == null) {
+                digest.update(data, offset, length);
+                return;
+            }
+            while (length > 0) {
+                int count = (int) Math.min(length, leafSize - leafFilled);
+                digest.update(data, offset, count);
+                offset += count;
+                length -= count;
+                leafFilled += count;
+                if (leafFilled == leafSize) {
+                    root.update(digest.digest());
+                    leafFilled = 0;
+                    leafCount++;
+                }
+            }
+        }
+
+        private String finish() {
+            if (root == null) {
+                return WSHasher.toHex(digest.digest());
+            }
+            if (leafFilled > 0 || leafCount == 0) {
+                root.update(digest.digest());
+            }
+            return WSHasher.toHex(root.digest());
+        }
+    }
+
+    // Package-private for the benchmark module.
+    static class WSUtils {
+        // The high byte of the metadata length field holds the packet flags.
+        private static final int FLAG_METADATA_COMPRESSED = 0x80;
+        private static final int FLAG_FILE_COMPRESSED = 0x40;
+        private static final int FLAG_METADATA_BINARY = 0x20;
+        // An 8 byte sequence number follows the header.
+        private static final int FLAG_SEQUENCED = 0x10;
+        private static final int LENGTH_MASK = 0x00FFFFFF;
+        // Reserved, the application metadata must not use it.
+        private static final String REQUEST_ID_KEY = "_rid";
+        // Set on a file packet sent without its content, and on the reply when the server does not have the file.
+        private static final String FILE_OMITTED_KEY = "file_omitted";
+        private static final String FILE_MISSING_KEY = "file_missing";
+        private static final String RESUME_HEADER = "X-Resume-Sequence";
+        // Type of the envelope of batched packets, 0xFE on the wire, read as a signed byte.
+        private static final int TYPE_BATCH = -2;
+        // Cumulative ack of the sequenced packets, 0xFD on the wire: no metadata, the body is the sequence number.
+        private static final int TYPE_ACK = -3;
+        private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+        private static long getReconnectDelay(WSOptions options, int code, int attempt) {
+            double backoff = options.reconnectIntervalMs * Math.pow(options.reconnectBackoffMultiplier, attempt);
+            long delayMs = (long) Math.min(options.reconnectMaxIntervalMs, backoff);
+            if (code == 1013) { // Try Again Later, the server asks for a long pause
+                delayMs = Math.max(delayMs, options.reconnectMaxIntervalMs);
+            }
+            if (!options.reconnectJitter || delayMs <= 0) {
+                return Math.max(0, delayMs);
+            }
+            if (code == 1013) {
+                // Equal jitter, never come back sooner than half of the pause.
+                return delayMs / 2 + ThreadLocalRandom.current().nextLong(delayMs / 2 + 1);
+            }
+            return ThreadLocalRandom.current().nextLong(delayMs + 1);
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of file at " + position);
+                }
+                position += read;
+            }
+        }
+
+        private static String getReasonForCode(int code, String reason) {
+            if (reason != null && reason.length() > 2) {
+                return reason;
+            }
+            if (code >= 0 && code <= 999) {
+                return "(Unused)";
+            } else if (code >= 1016 && code <= 4999) {
+                if (code <= 1999) {
+                    return "(For WebSocket standard)";
+                } else if (code <= 2999) {
+                    return "(For WebSocket extensions)";
+                } else if (code <= 3999) {
+                    return "(For libraries and frameworks)";
+                } else {
+                    return "(For applications)";
+                }
+            }
+            switch (code) {
+                case 1000:
+                    return "Normal Closure";
+                case 1001:
+                    return "Going Away";
+                case 1002:
+                    return "Protocol Error";
+                case 1003:
+                    return "Unsupported Data";
+                case 1004:
+                    return "(For future)";
+                case 1005:
+                    return "No Status Received";
+                case 1006:
+                    return "Abnormal Closure";
+                case 1007:
+                    return "Invalid Frame Payload Data";
+                case 1008:
+                    return "Policy Violation";
+                case 1009:
+                    return "Message Too Big";
+                case 1010:
+                    return "Missing Extension";
+                case 1011:
+                    return "Internal Error";
+                case 1012:
+                    return "Service Restart";
+                case 1013:
+                    return "Try Again Later";
+                case 1014:
+                    return "Bad Gateway";
+                case 1015:
+                    return "TLS Handshake";
+                default:
+                    return reason;
+            }
+        }
+
+        static String formatDataSize(long bytes) {
+            long absB = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(bytes);
+            if (absB < 1024) {
+                return bytes + " B";
+            }
+            long value = absB;
+            CharacterIterator ci = new StringCharacterIterator("KMGTPE");
+            for (int i = 40; i >= 0 && absB > 0xfffccccccccccccL >> i; i -= 10) {
+                value >>= 10;
+                ci.next();
+            }
+            value *= Long.signum(bytes);
+            return String.format(Locale.ENGLISH, "%.1f %ciB", value / 1024.0, ci.current());
+        }
+
+        private static void sleep(int ms) {
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Deque<WSPacket>[] createLanes(int count) {
+            Deque<WSPacket>[] lanes = new Deque[count];
+            for (int i = 0; i < count; i++) {
+                lanes[i] = new ArrayDeque<>();
+            }
+            return lanes;
+        }
+
+        // Decodes at most maxBytes of the data, a multi-byte character cut at the end is replaced.
+        private static String preview(ByteBuffer data, int maxBytes) {
+            ByteBuffer head = data.duplicate();
+            int size = head.remaining();
+            if (size <= maxBytes) {
+                return StandardCharsets.UTF_8.decode(head).toString();
+            }
+            head.limit(head.position() + maxBytes);
+            return StandardCharsets.UTF_8.decode(head) + "... (" + formatDataSize(size) + ")";
+        }
+
+        // The binary codec is offered first, as "<protocol>.<codec>", the plain protocol means JSON metadata.
+        private static String getOfferedProtocols(WSOptions options) {
+            String protocol = options.protocol == null ? "" : options.protocol;
+            if (options.codec == WSCodec.JSON) {
+                return protocol;
+            }
+            String binary = protocol.isEmpty() ? options.codec.getName() : protocol + "." + options.codec.getName();
+            return protocol.isEmpty() ? binary : binary + ", " + protocol;
+        }
+
+        private static WSCodec getNegotiatedCodec(WSOptions options, String selectedProtocol) {
+            if (options.codec == WSCodec.JSON || selectedProtocol == null) {
+                return WSCodec.JSON;
+            }
+            String name = "." + options.codec.getName();
+            String selected = selectedProtocol.trim();
+            return selected.equals(options.codec.getName()) || selected.endsWith(name) ? options.codec : WSCodec.JSON;
+        }
+
+        private static boolean regionEquals(ByteBuffer data, int start, int end, byte[] bytes) {
+            if (end - start != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (data.get(start + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void write(ByteBuffer data, OutputStream output, byte[] chunk) throws IOException {
+            ByteBuffer source = data.duplicate();
+            if (source.hasArray()) {
+                output.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                return;
+            }
+            while (source.hasRemaining()) {
+                int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                output.write(chunk, 0, count);
+            }
+        }
+
+        // The metadata and the file content together are limited to maxSize bytes once inflated.
+        private static WSPacket decompress(Inflater inflater, byte[] dictionary, WSPacket packet, int maxSize) throws DataFormatException {
+            byte[] metadata = (packet.flags & FLAG_METADATA_COMPRESSED) != 0 ?
+                    inflate(inflater, dictionary, packet.data, Math.min(maxSize, LENGTH_MASK)) : toBytes(packet.data);
+            byte[] fileContent = (packet.flags & FLAG_FILE_COMPRESSED) != 0 ?
+                    inflate(inflater, null, packet.fileData, maxSize - metadata.length) : toBytes(packet.fileData);
+            byte[] bytes = new byte[metadata.length + fileContent.length];
+            System.arraycopy(metadata, 0, bytes, 0, metadata.length);
+            System.arraycopy(fileContent, 0, bytes, metadata.length, fileContent.length);
+            return new WSPacket(packet.type, packet.flags & FLAG_METADATA_BINARY, metadata.length, ByteBuffer.wrap(bytes), null);
+        }
+
+        static byte[] deflate(Deflater deflater, byte[] dictionary, byte[] input, int offset, int length) {
+            deflater.reset();
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, length / 2));
+            byte[] chunk = new byte[Math.min(8192, Math.max(64, length))];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                output.write(chunk, 0, count);
+            }
+            return output.toByteArray();
+        }
+
+        // Stops with an error once the output grows over maxSize, a small input can inflate to gigabytes.
+        static byte[] inflate(Inflater inflater, byte[] dictionary, ByteBuffer input, int maxSize) throws DataFormatException {
+            inflater.reset();
+            inflater.setInput(toBytes(input));
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.max(64, Math.min(maxSize, 2L * input.remaining())));
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (output.size() + count > maxSize) {
+                    throw new DataFormatException("The inflated data is larger than " + formatDataSize(maxSize));
+                }
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new DataFormatException("The packet needs a compression dictionary.");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new DataFormatException("Truncated compressed data.");
+                    }
+                }
+                output.write(chunk, 0, count);
+            }
+            return output.toByteArray();
+        }
+
+        // Compresses a sample of the content, media files and archives are already compressed and are skipped.
+        private static boolean isCompressible(Deflater deflater, byte[] content) {
+            int sampleSize = Math.min(content.length, 4096);
+            byte[] compressed = deflate(deflater, null, content, 0, sampleSize);
+            return compressed.length < sampleSize * 0.9;
+        }
+
+        private static byte[] toBytes(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+
+        static byte[] createPacket(WSPacket packet) {
+            // Create an array to hold the data to be transmitted
+            byte[] payload = new byte[frameSize(packet)];
+            writePacket(packet, payload, 0);
+
+            // Return the formed data packet
+            return payload;
+        }
+
+        // Packet size: data + 1 for the type and 4 for metadataLength, + 8 for the sequence number if it has one.
+        static int frameSize(WSPacket packet) {
+            return (packet.sequence < 0 ? 5 : 13) + packet.buffer.remaining();
+        }
+
+        static int writePacket(WSPacket packet, byte[] target, int offset) {
+            if (packet.sequence < 0) {
+                return writePacket(packet.type, packet.flags, packet.metadataLen, packet.buffer, target, offset);
+            }
+            writePacket(packet.type, packet.flags | FLAG_SEQUENCED, packet.metadataLen, EMPTY_BUFFER, target, offset);
+            ByteBuffer.wrap(target, offset + 5, 8).putLong(packet.sequence);
+            int length = packet.buffer.remaining();
+            packet.buffer.duplicate().get(target, offset + 13, length);
+            return offset + 13 + length;
+        }
+
+        // Writes the packet at the offset of a possibly larger (pooled) array, returns the end offset.
+        private static int writePacket(int type, int flags, int metadataLen, ByteBuffer data, byte[] target, int offset) {
+            if (metadataLen > LENGTH_MASK) {
+                throw new IllegalArgumentException("The metadata is larger than " + formatDataSize(LENGTH_MASK));
+            }
+            // Place the type in the first byte of the packet
+            target[offset] = (byte) type;
+
+            // flags (high byte) and metadata length (low 3 bytes)
+            target[offset + 1] = (byte) flags;
+            target[offset + 2] = (byte) (metadataLen >> 16);
+            target[offset + 3] = (byte) (metadataLen >> 8);
+            target[offset + 4] = (byte) metadataLen;
+
+            // Copy data after the header into the packet, without moving the position of the source
+            int length = data.remaining();
+            data.duplicate().get(target, offset + 5, length);
+            return offset + 5 + length;
+        }
+
+        static WSPacket readPacket(ByteBuffer payload) {
+            // Check if the buffer exists and contains data
+            if (payload == null || payload.remaining() <= 5) {
+                // If there's no data to read, return null or throw an exception
+                return null; // or throw new IllegalArgumentException("Invalid packet data");
+            }
+
+            int offset = payload.position();
+
+            // Get the data type from the 0 byte of the packet
+            int packetType = payload.get(offset);
+
+            // Get the flags from the 1 byte and the metadata length from the 2-4 bytes of the packet
+            int flags = payload.get(offset + 1) & 0xFF;
+            int metadataLen = ((payload.get(offset + 2) & 0xFF) << 16) |
+                    ((payload.get(offset + 3) & 0xFF) << 8) |
+                    (payload.get(offset + 4) & 0xFF);
+
+            long sequence = -1;
+            int headerSize = 5;
+            if ((flags & FLAG_SEQUENCED) != 0) {
+                if (payload.remaining() < 13) {
+                    return null;
+                }
+                sequence = payload.getLong(offset + 5);
+                flags &= ~FLAG_SEQUENCED;
+                headerSize = 13;
+            }
+
+            // The remaining bytes of the packet are shared with the packet, not copied
+            ByteBuffer data = payload.duplicate();
+            data.position(offset + headerSize);
+
+            WSPacket packet = new WSPacket(packetType, flags, metadataLen, data.slice(), null);
+            packet.sequence = sequence;
+            return packet;
+        }
+
+        // The batch envelope has no metadata, its body is a sequence of [int length][packet] entries.
+        private static List<WSPacket> readBatch(WSPacket batch) throws IOException {
+            List<WSPacket> packets = new ArrayList<>();
+            ByteBuffer entries = batch.fileData.duplicate();
+            while (entries.hasRemaining()) {
+                if (entries.remaining() < 4) {
+                    throw new IOException("Truncated batch entry.");
+                }
+                int length = entries.getInt();
+                if (length <= 5 || length > entries.remaining()) {
+                    throw new IOException("Invalid batch entry length: " + length);
+                }
+                ByteBuffer entry = entries.duplicate();
+                entry.limit(entry.position() + length);
+                entries.position(entries.position() + length);
+                packets.add(readPacket(entry));
+            }
+            return packets;
+        }
+    }
+
+    /**
+     * A packet is a read-only view over the received (or queued) buffer: the metadata and the file data
+     * are slices of the same memory. Methods returning {@code byte[]} make a copy, methods returning
+     * {@link ByteBuffer} do not.
+     */
+    public static class WSPacket {
+        private final int type;
+        private final int flags;
+        private final int metadataLen;
+        private final ByteBuffer buffer;
+        private final ByteBuffer data;
+        private final ByteBuffer fileData;
+        private final WSFileSource fileSource;
+        private long outboxId = -1;
+        private long enqueuedAtNanos;
+        private int lane;
+        private long sequence = -1;
+        private String uploadHash;
+        private WSCodec codec;
+        // The logger of the client that received the packet, null for the packets it did not receive.
+        private WSLogger logger;
+        private volatile JSONObject json;
+        private volatile String messageType;
+        private volatile boolean messageTypeRead;
+        private long streamedFileSize = -1;
+        private File receivedFile;
+
+        WSPacket(int type, int metadataLen, byte[] buffer) {
+            this(type, metadataLen, ByteBuffer.wrap(buffer));
+        }
+
+        private WSPacket(int type, int metadataLen, ByteBuffer buffer) {
+            this(type, 0, metadataLen, buffer, null);
+        }
+
+        // With a file source the buffer only holds the metadata, the file data is streamed from the source on send.
+        private WSPacket(int type, int flags, int metadataLen, ByteBuffer buffer, WSFileSource fileSource) {
+            if (metadataLen < 0 || metadataLen > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid metadata length: " + metadataLen);
+            }
+            this.type = type;
+            this.flags = flags;
+            this.metadataLen = metadataLen;
+            this.buffer = buffer.slice().asReadOnlyBuffer();
+
+            ByteBuffer region = this.buffer.duplicate();
+            region.limit(metadataLen);
+            data = region.slice();
+
+            region = this.buffer.duplicate();
+            region.position(metadataLen);
+            fileData = region.slice();
+            this.fileSource = fileSource;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getDataSize() {
+            return data.remaining();
+        }
+
+        public byte[] getDataAsBytes() {
+            return WSUtils.toBytes(data);
+        }
+
+        public ByteBuffer getDataAsBuffer() {
+            return data.duplicate();
+        }
+
+        public byte[] getFileDataAsBytes() {
+            return WSUtils.toBytes(fileData);
+        }
+
+        public ByteBuffer getFileDataAsBuffer() {
+            return fileData.duplicate();
+        }
+
+        public int getFileDataSize() {
+            if (streamedFileSize >= 0) {
+                return (int) Math.min(streamedFileSize, Integer.MAX_VALUE);
+            }
+            return fileSource == null ? fileData.remaining() : (int) Math.min(fileSource.size, Integer.MAX_VALUE);
+        }
+
+        /**
+         * True for a received packet whose file data was streamed to a {@link WSFileSink} or a temporary file
+         * instead of being kept in memory, {@link #getFileDataAsBuffer()} is then empty.
+         */
+        public boolean isFileDataStreamed() {
+            return streamedFileSize >= 0;
+        }
+
+        /**
+         * The temporary file holding the streamed file data when no sink took it, the application moves or
+         * deletes it.
+         */
+        public File getReceivedFile() {
+            return receivedFile;
+        }
+
+        public String getDataAsString() {
+            if (codec != null) {
+                JSONObject object = getDataAsJSONObject();
+                return object == null ? "" : object.toString();
+            }
+            return StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+        }
+
+        /**
+         * Decodes the metadata once, later calls return the same object. It is cached on the packet and shared
+         * by every caller, including the other event handlers, so treat it as read-only: copy it before changing it.
+         */
+        public JSONObject getDataAsJSONObject() {
+            JSONObject object = json;
+            if (object != null) {
+                return object;
+            }
+            try {
+                object = (codec == null ? WSCodec.JSON : codec).decode(data.duplicate());
+                json = object;
+                return object;
+            } catch (JSONException ex) {
+                logError("Error converting data to JSONObject: " + ex.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Returns the "type" field of the metadata, read without parsing the rest of it, or null when there is none.
+         */
+        public String getMessageType() {
+            if (messageTypeRead) {
+                return messageType;
+            }
+            try {
+                messageType = readString("type");
+            } catch (JSONException ex) {
+                logError("Error reading packet type: " + ex.getMessage());
+                messageType = null;
+            }
+            messageTypeRead = true;
+            return messageType;
+        }
+
+        public byte[] getPayload() {
+            return WSUtils.createPacket(this);
+        }
+
+        /**
+         * The sequence number of a packet sent or received in reliable mode, -1 otherwise.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        private void logError(String message) {
+            if (logger != null) {
+                logger.e(TAG, message);
+            }
+        }
+
+        // Reads a top level string field, from the parsed metadata if there is one, without parsing it otherwise.
+        private String readString(String key) throws JSONException {
+            JSONObject object = json;
+            return object != null ? object.optString(key, null) : (codec == null ? WSCodec.JSON : codec).readString(data.duplicate(), key);
+        }
+    }
+
+    /**
+     * Append-only journal of the outgoing packets, split in memory-mapped segment files.
+     * <p>
+     * A record is {@code [int length][int crc32][byte kind][long id][byte priority][payload]}, an ack record has no
+     * priority and no payload. Segments are replayed in order on open, a zero length or a bad checksum marks the end
+     * of the written part of a segment. A packet record is forced to disk before {@link #append} returns; concurrent
+     * appends share one force. Acks are not forced, a lost ack only means the packet is sent again.
+     * Segments are deleted from the oldest one as soon as all of their packets are acknowledged.
+     * The directory is locked while the outbox is open, a second client (in this or another process) can not open it.
+     * Package-private for the benchmark module and the tests.
+     */
+    static class WSOutbox {
+        private static final byte KIND_PACKET = 1;
+        private static final byte KIND_ACK = 2;
+        private static final int HEADER_SIZE = 8;
+        private final File directory;
+        private final int segmentSize;
+        private final WSLogger logger;
+        private final Object syncLock = new Object();
+        private final Deque<WSOutboxSegment> segments = new ArrayDeque<>();
+        private final Map<Long, WSOutboxSegment> pendingIds = new HashMap<>();
+        private final CRC32 crc = new CRC32();
+        private WSOutboxSegment active;
+        private FileChannel lockChannel;
+        private long nextId;
+        private long appendedCount;
+        private long syncedCount;
+
+        WSOutbox(File directory, int segmentSize, WSLogger logger) {
+            this.directory = directory;
+            this.segmentSize = segmentSize;
+            this.logger = logger;
+        }
+
+        synchronized List<WSOutboxRecord> open() throws IOException {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create outbox directory: " + directory);
+            }
+            lock();
+            try {
+                return replay();
+            } catch (IOException | RuntimeException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        // The lock is held by the channel, it is released when the channel is closed.
+        private void lock() throws IOException {
+            FileChannel channel = new RandomAccessFile(new File(directory, "outbox.lock"), "rw").getChannel();
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                lock = null;
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            if (lock == null) {
+                channel.close();
+                throw new IOException("The outbox directory is used by another client: " + directory);
+            }
+            lockChannel = channel;
+        }
+
+        private List<WSOutboxRecord> replay() throws IOException {
+            File[] files = directory.listFiles((dir, name) -> name.startsWith("outbox-") && name.endsWith(".log"));
+            List<File> sorted = new ArrayList<>(files == null ? Collections.<File>emptyList() : Arrays.asList(files));
+            Collections.sort(sorted, (a, b) -> Long.compare(segmentIndex(a), segmentIndex(b)));
+
+            Map<Long, WSOutboxRecord> pending = new LinkedHashMap<>();
+            Map<Long, WSOutboxSegment> segmentsByIndex = new HashMap<>();
+            long lastIndex = 0;
+            for (File file : sorted) {
+                WSOutboxSegment segment = new WSOutboxSegment(segmentIndex(file), file);
+                lastIndex = segment.index;
+                segments.add(segment);
+                segmentsByIndex.put(segment.index, segment);
+                readSegment(segment, pending);
+            }
+            for (WSOutboxRecord record : pending.values()) {
+                WSOutboxSegment segment = segmentsByIndex.get(record.segmentIndex);
+                segment.pendingCount++;
+                pendingIds.put(record.id, segment);
+            }
+            active = createSegment(lastIndex + 1, segmentSize);
+            removeAcknowledgedSegments();
+            return new ArrayList<>(pending.values());
+        }
+
+        private void readSegment(WSOutboxSegment segment, Map<Long, WSOutboxRecord> pending) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+            try {
+                ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                while (buffer.remaining() >= HEADER_SIZE) {
+                    int length = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    byte[] body = new byte[length];
+                    buffer.get(body);
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        logger.e(TAG, "(OUTBOX) / Corrupted record in " + segment.file.getName() + ", ignoring the rest of the segment");
+                        break;
+                    }
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    byte kind = record.get();
+                    long id = record.getLong();
+                    nextId = Math.max(nextId, id + 1);
+                    if (kind == KIND_PACKET) {
+                        int priority = record.get();
+                        byte[] payload = new byte[record.remaining()];
+                        record.get(payload);
+                        pending.put(id, new WSOutboxRecord(id, priority, payload, segment.index));
+                    } else if (kind == KIND_ACK) {
+                        pending.remove(id);
+                    }
+                }
+            } finally {
+                file.close();
+            }
+        }
+
+        long append(int priority, WSPacket packet, WSBufferPool pool) throws IOException {
+            long id;
+            long count;
+            int length = 1 + 8 + 1 + WSUtils.frameSize(packet);
+            byte[] body = pool.acquire(length);
+            try {
+                synchronized (this) {
+                    if (active == null) {
+                        throw new IOException("The outbox is closed.");
+                    }
+                    id = nextId++;
+                    ByteBuffer.wrap(body).put(KIND_PACKET).putLong(id).put((byte) priority);
+                    WSUtils.writePacket(packet, body, 10);
+                    write(body, length);
+                    active.pendingCount++;
+                    pendingIds.put(id, active);
+                    count = ++appendedCount;
+                }
+            } finally {
+                pool.release(body);
+            }
+            sync(count);
+            return id;
+        }
+
+        synchronized void acknowledge(long id) {
+            WSOutboxSegment segment = pendingIds.remove(id);
+            if (segment == null || active == null) {
+                return;
+            }
+            try {
+                ByteBuffer body = ByteBuffer.allocate(1 + 8);
+                body.put(KIND_ACK).putLong(id);
+                write(body.array(), body.capacity());
+            } catch (IOException ex) {
+                logger.e(TAG, "(OUTBOX) / Error writing ack: " + ex.getMessage());
+            }
+            segment.pendingCount--;
+            removeAcknowledgedSegments();
+        }
+
+        // Group commit: a thread that finds its record already covered by another thread's force returns at once.
+        private void sync(long count) throws IOException {
+            synchronized (syncLock) {
+                if (syncedCount >= count) {
+                    return;
+                }
+                long target;
+                MappedByteBuffer buffer;
+                synchronized (this) {
+                    target = appendedCount;
+                    buffer = active == null ? null : active.buffer;
+                }
+                if (buffer != null) {
+                    buffer.force();
+                }
+                syncedCount = target;
+            }
+        }
+
+        private void write(byte[] body, int length) throws IOException {
+            int recordSize = HEADER_SIZE + length;
+            if (active.buffer.remaining() < recordSize) {
+                // Records of the previous segment must be durable before the new one is used.
+                active.buffer.force();
+                active.buffer = null;
+                active = createSegment(active.index + 1, Math.max(segmentSize, recordSize));
+                removeAcknowledgedSegments();
+            }
+            crc.reset();
+            crc.update(body, 0, length);
+            active.buffer.putInt(length).putInt((int) crc.getValue()).put(body, 0, length);
+        }
+
+        private WSOutboxSegment createSegment(long index, int size) throws IOException {
+            WSOutboxSegment segment = new WSOutboxSegment(index, new File(directory, String.format(Locale.ENGLISH, "outbox-%019d.log", index)));
+            RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                file.close();
+            }
+            segments.add(segment);
+            return segment;
+        }
+
+        // Forces the written records and releases the directory, the packets not acknowledged are replayed on open.
+        synchronized void close() {
+            if (active != null && active.buffer != null) {
+                active.buffer.force();
+            }
+            for (WSOutboxSegment segment : segments) {
+                segment.buffer = null;
+            }
+            segments.clear();
+            pendingIds.clear();
+            active = null;
+            if (lockChannel != null) {
+                try {
+                    lockChannel.close();
+                } catch (IOException ex) {
+                    logger.e(TAG, "(OUTBOX) / Error releasing the outbox lock: " + ex.getMessage());
+                }
+                lockChannel = null;
+            }
+        }
+
+        // Only a prefix of segments is deleted, so an ack is never removed while the packet it refers to is kept.
+        private void removeAcknowledgedSegments() {
+            WSOutboxSegment segment;
+            while ((segment = segments.peek()) != null && segment != active && segment.pendingCount == 0) {
+                segments.poll();
+                if (!segment.file.delete()) {
+                    logger.e(TAG, "(OUTBOX) / Unable to delete segment: " + segment.file);
+                }
+            }
+        }
+
+        private static long segmentIndex(File file) {
+            String name = file.getName();
+            try {
+                return Long.parseLong(name.substring("outbox-".length(), name.length() - ".log".length()));
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+
+        private static class WSOutboxSegment {
+            private final long index;
+            private final File file;
+            private MappedByteBuffer buffer;
+            private int pendingCount;
+
+            private WSOutboxSegment(long index, File file) {
+                this.index = index;
+                this.file = file;
+            }
+        }
+
+        static class WSOutboxRecord {
+            private final long id;
+            private final int priority;
+            private final byte[] payload;
+            private final long segmentIndex;
+
+            private WSOutboxRecord(long id, int priority, byte[] payload, long segmentIndex) {
+                this.id = id;
+                this.priority = priority;
+                this.payload = payload;
+                this.segmentIndex = segmentIndex;
+            }
+        }
+    }
+
+    /**
+     * LRU index of the hashes of the files the server has, kept in a text file of one line per update: a hash
+     * is added or used, or removed when prefixed with "-". Replaying the lines restores the entries in use order,
+     * the file is rewritten with the live entries once it has twice as many lines as the index can hold.
+     * The updates are written in batches, at most once per {@link #FLUSH_DELAY_MS} and on close, so a lookup does
+     * no file I/O. The index is only a hint, write errors are logged and ignored.
+     */
+    private static class WSUploadIndex {
+        private static final long FLUSH_DELAY_MS = 1000;
+        private final File file;
+        private final int maxEntries;
+        private final ScheduledExecutorService executor;
+        private final WSLogger logger;
+        private final LinkedHashMap<String, Boolean> hashes;
+        // Orders the writes of concurrent flushes, taken before the index lock.
+        private final Object fileLock = new Object();
+        private final StringBuilder pending = new StringBuilder();
+        private int pendingLines;
+        private int lineCount;
+        private ScheduledFuture<?> flushTask;
+        private boolean isClosed;
+
+        private WSUploadIndex(File file, int maxEntries, ScheduledExecutorService executor, WSLogger logger) {
+            this.file = file;
+            this.maxEntries = maxEntries;
+            this.executor = executor;
+            this.logger = logger;
+            this.hashes = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > WSUploadIndex.this.maxEntries;
+                }
+            };
+            load();
+        }
+
+        private void load() {
+            if (!file.isFile()) {
+                return;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("-")) {
+                        hashes.remove(line.substring(1));
+                    } else if (!line.isEmpty()) {
+                        hashes.put(line, Boolean.TRUE);
+                    }
+                    lineCount++;
+                }
+            } catch (IOException ex) {
+                logger.e(TAG, "(UPLOAD) / Unable to read the upload index: " + file, ex);
+            }
+        }
+
+        private synchronized boolean contains(String hash) {
+            if (hashes.get(hash) == null) {
+                return false;
+            }
+            append(hash);
+            return true;
+        }
+
+        private synchronized void add(String hash) {
+            hashes.put(hash, Boolean.TRUE);
+            append(hash);
+        }
+
+        private synchronized void remove(String hash) {
+            if (hashes.remove(hash) != null) {
+                append("-" + hash);
+            }
+        }
+
+        // Must be called with the lock held.
+        private void append(String line) {
+            pending.append(line).append('\n');
+            pendingLines++;
+            if (flushTask != null || isClosed) {
+                return;
+            }
+            try {
+                flushTask = executor.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // The runtime is shut down, the updates are written on close.
+            }
+        }
+
+        /**
+         * Writes the pending updates now and stops scheduling writes, the later updates are kept in memory only.
+         */
+        private void close() {
+            synchronized (this) {
+                isClosed = true;
+                if (flushTask != null) {
+                    flushTask.cancel(false);
+                }
+            }
+            flush();
+        }
+
+        private void flush() {
+            synchronized (fileLock) {
+                String content;
+                boolean isCompacting;
+                synchronized (this) {
+                    flushTask = null;
+                    if (pendingLines == 0) {
+                        return;
+                    }
+                    isCompacting = lineCount + pendingLines >= 2 * maxEntries;
+                    if (isCompacting) {
+                        StringBuilder entries = new StringBuilder(hashes.size() * 65);
+                        for (String hash : hashes.keySet()) {
+                            entries.append(hash).append('\n');
+                        }
+                        content = entries.toString();
+                        lineCount = hashes.size();
+                    } else {
+                        content = pending.toString();
+                        lineCount += pendingLines;
+                    }
+                    pending.setLength(0);
+                    pendingLines = 0;
+                }
+                if (isCompacting) {
+                    compact(content);
+                    return;
+                }
+                try (OutputStream output = new FileOutputStream(file, true)) {
+                    output.write(content.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ex) {
+                    logger.e(TAG, "(UPLOAD) / Unable to write the upload index: " + file, ex);
+                }
+            }
+        }
+
+        private void compact(String content) {
+            File tempFile = new File(file.getPath() + ".tmp");
+            try {
+                try (OutputStream output = new FileOutputStream(tempFile)) {
+                    output.write(content.getBytes(StandardCharsets.UTF_8));
+                }
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Unable to replace " + file);
+                }
+            } catch (IOException ex) {
+                logger.e(TAG, "(UPLOAD) / Unable to compact the upload index: " + file, ex);
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static class WSFileSource {
+        private static final long MAPPED_WINDOW_SIZE = 32L * 1024 * 1024;
+        private final File file;
+        private final FileChannel channel;
+        private final long position;
+        private final long size;
+        private final boolean deleteOnRelease;
+        private final boolean mapped;
+        private final WSUploadListener listener;
+        private final WSLogger logger;
+        private RandomAccessFile openedFile;
+        private ByteBuffer chunk;
+        private MappedByteBuffer window;
+        private long windowOffset;
+
+        private WSFileSource(File file, FileChannel channel, long position, long size, boolean deleteOnRelease, boolean mapped,
+                             WSUploadListener listener, WSLogger logger) {
+            this.file = file;
+            this.channel = channel;
+            this.position = position;
+            this.size = size;
+            this.deleteOnRelease = deleteOnRelease;
+            this.mapped = mapped;
+            this.listener = listener;
+            this.logger = logger;
+        }
+
+        private FileChannel open() throws IOException {
+            if (channel != null) {
+                return channel;
+            }
+            if (openedFile == null) {
+                openedFile = new RandomAccessFile(file, "r");
+            }
+            return openedFile.getChannel();
+        }
+
+        // Returns up to chunkSize bytes starting at offset. The returned buffer is only valid until the next call.
+        private ByteBuffer read(long offset, int chunkSize) throws IOException {
+            FileChannel source = open();
+            int length = (int) Math.min(chunkSize, size - offset);
+            if (!mapped) {
+                if (chunk == null || chunk.capacity() < length) {
+                    chunk = ByteBuffer.allocate(length);
+                }
+                chunk.clear();
+                chunk.limit(length);
+                WSUtils.readFully(source, chunk, position + offset);
+                chunk.flip();
+                return chunk;
+            }
+            if (window == null || offset < windowOffset || offset + length > windowOffset + window.capacity()) {
+                long windowLength = Math.min(Math.max(MAPPED_WINDOW_SIZE, length), size - offset);
+                window = source.map(FileChannel.MapMode.READ_ONLY, position + offset, windowLength);
+                windowOffset = offset;
+            }
+            ByteBuffer slice = window.duplicate();
+            slice.position((int) (offset - windowOffset));
+            slice.limit(slice.position() + length);
+            return slice;
+        }
+
+        // A mapped file is digested from its pages, otherwise the next chunk is read ahead while one is digested.
+        private String sha256(int chunkSize, Executor executor) throws IOException {
+            if (!mapped) {
+                return WSHasher.sha256(open(), position, size, chunkSize, executor);
+            }
+            MessageDigest digest = WSHasher.digest();
+            long offset = 0;
+            while (offset < size) {
+                ByteBuffer buffer = read(offset, chunkSize);
+                offset += buffer.remaining();
+                digest.update(buffer);
+            }
+            return WSHasher.toHex(digest.digest());
+        }
+
+        private void close() {
+            chunk = null;
+            window = null;
+            if (openedFile != null) {
+                try {
+                    openedFile.close();
+                } catch (IOException ignored) {
+                }
+                openedFile = null;
+            }
+        }
+
+        private void release() {
+            close();
+            if (deleteOnRelease && file != null && !file.delete()) {
+                logger.e(TAG, "(SEND) / Unable to delete temporary file: " + file);
+            }
+        }
+
+        private void notifyProgress(WSClient client, long sentBytes) {
+            if (listener == null) {
+                return;
+            }
+            try {
+                listener.onProgress(client, sentBytes, size);
+            } catch (Exception ex) {
+                logger.e(TAG, "(SEND) / Error handling upload progress", ex);
+            }
+        }
+    }
+
+    /**
+     * The sender always writes every queued packet of a higher priority before the next packet of a lower one.
+     * A fragmented upload that is already on the wire is finished first, WebSocket messages cannot interleave.
+     */
+    public enum WSPriority {
+        CRITICAL,
+        CONTROL,
+        BULK
+    }
+
+    /**
+     * What {@code sendPacket} does when the queue of the packet priority is full.
+     */
+    public enum WSOverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        FAIL_FAST
+    }
+
+    /**
+     * CONNECTING until the socket opens, VERIFYING until the server verification packet, BACKING_OFF between a lost
+     * connection and the next reconnect attempt. CLOSED before {@code connect()}, after {@code disconnect()} and when
+     * the client stopped reconnecting.
+     */
+    public enum WSState {
+        CONNECTING,
+        VERIFYING,
+        CONNECTED,
+        BACKING_OFF,
+        CLOSED
+    }
+
+    /**
+     * Counters updated by the socket and sender threads. Recording only touches atomics and never allocates,
+     * the snapshot copies them into a {@link WSMetrics}.
+     */
+    private static class WSMetricsRecorder {
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong packetsIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong packetsOut = new AtomicLong();
+        private final AtomicInteger queueDepth = new AtomicInteger();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+        private final AtomicLong reconnectCount = new AtomicLong();
+        private final AtomicLong disconnectedSinceNanos = new AtomicLong();
+        private final AtomicLong disconnectedNanos = new AtomicLong();
+        private final ConcurrentHashMap<Integer, AtomicLong> closeCodes = new ConcurrentHashMap<>();
+        private final WSLatencyRecorder sendLatency = new WSLatencyRecorder();
+        private final WSLatencyRecorder pingRtt = new WSLatencyRecorder();
+        private final WSLatencyRecorder reconnectLatency = new WSLatencyRecorder();
+        private final AtomicLong smoothedRttMicros = new AtomicLong();
+        private final AtomicLong rttVarianceMicros = new AtomicLong();
+        private final AtomicLong droppedEvents = new AtomicLong();
+
+        private void recordReceived(int bytes) {
+            bytesIn.addAndGet(bytes);
+            packetsIn.incrementAndGet();
+        }
+
+        private void recordSent(long bytes, long enqueuedAtNanos) {
+            bytesOut.addAndGet(bytes);
+            packetsOut.incrementAndGet();
+            sendLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - enqueuedAtNanos));
+        }
+
+        private void recordRtt(long rttMicros, long smoothedMicros, long varianceMicros) {
+            pingRtt.record(rttMicros);
+            smoothedRttMicros.set(smoothedMicros);
+            rttVarianceMicros.set(varianceMicros);
+        }
+
+        private void recordDroppedEvent() {
+            droppedEvents.incrementAndGet();
+        }
+
+        private void recordQueueDepth(int delta) {
+            int depth = queueDepth.addAndGet(delta);
+            int max;
+            while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+                // Retry, another thread raised the maximum meanwhile.
+            }
+        }
+
+        private void recordDisconnected(int code) {
+            AtomicLong count = closeCodes.get(code);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = closeCodes.putIfAbsent(code, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+            disconnectedSinceNanos.compareAndSet(0, System.nanoTime());
+        }
+
+        private void recordConnected() {
+            long since = disconnectedSinceNanos.getAndSet(0);
+            if (since != 0) {
+                long nanos = System.nanoTime() - since;
+                disconnectedNanos.addAndGet(nanos);
+                reconnectLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+                reconnectCount.incrementAndGet();
+            }
+        }
+
+        private WSMetrics snapshot() {
+            long since = disconnectedSinceNanos.get();
+            long disconnected = disconnectedNanos.get() + (since == 0 ? 0 : System.nanoTime() - since);
+            Map<Integer, Long> codes = new HashMap<>();
+            for (Map.Entry<Integer, AtomicLong> entry : closeCodes.entrySet()) {
+                codes.put(entry.getKey(), entry.getValue().get());
+            }
+            return new WSMetrics(bytesIn.get(), packetsIn.get(), bytesOut.get(), packetsOut.get(),
+                    queueDepth.get(), maxQueueDepth.get(), sendLatency.snapshot(), pingRtt.snapshot(),
+                    smoothedRttMicros.get(), rttVarianceMicros.get(), reconnectCount.get(), reconnectLatency.snapshot(),
+                    TimeUnit.NANOSECONDS.toMillis(disconnected), Collections.unmodifiableMap(codes),
+                    droppedEvents.get());
+        }
+    }
+
+    /**
+     * Log-linear histogram of microsecond values: 8 exact buckets below 8, then 8 buckets per power of two,
+     * so a recorded value is reported with at most 12.5% error. Each bucket is an atomic counter.
+     */
+    private static class WSLatencyRecorder {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKET_COUNT = (64 - 3 + 1) * SUB_BUCKETS;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private void record(long micros) {
+            long value = Math.max(0, micros);
+            buckets.incrementAndGet(bucketIndex(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Retry, another thread raised the maximum meanwhile.
+            }
+        }
+
+        private static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long bucketLowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + 2;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 3);
+        }
+
+        private WSHistogram snapshot() {
+            long[] counts = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new WSHistogram(counts, count.get(), sum.get(), max.get());
+        }
+    }
+
+    /**
+     * Snapshot of a latency histogram, values are in microseconds.
+     */
+    public static class WSHistogram {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private WSHistogram(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxMicros() {
+            return max;
+        }
+
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the lower bound of the bucket holding the given percentile (0-100).
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(WSLatencyRecorder.bucketLowerBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    public static class WSMetrics {
+        private final long bytesIn;
+        private final long packetsIn;
+        private final long bytesOut;
+        private final long packetsOut;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final WSHistogram sendLatency;
+        private final WSHistogram pingRtt;
+        private final long smoothedRttMicros;
+        private final long rttVarianceMicros;
+        private final long reconnectCount;
+        private final WSHistogram reconnectLatency;
+        private final long disconnectedMs;
+        private final Map<Integer, Long> closeCodeCounts;
+        private final long droppedEvents;
+
+        private WSMetrics(long bytesIn, long packetsIn, long bytesOut, long packetsOut, int queueDepth, int maxQueueDepth,
+                          WSHistogram sendLatency, WSHistogram pingRtt, long smoothedRttMicros, long rttVarianceMicros,
+                          long reconnectCount, WSHistogram reconnectLatency, long disconnectedMs,
+                          Map<Integer, Long> closeCodeCounts, long droppedEvents) {
+            this.bytesIn = bytesIn;
+            this.packetsIn = packetsIn;
+            this.bytesOut = bytesOut;
+            this.packetsOut = packetsOut;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.sendLatency = sendLatency;
+            this.pingRtt = pingRtt;
+            this.smoothedRttMicros = smoothedRttMicros;
+            this.rttVarianceMicros = rttVarianceMicros;
+            this.reconnectCount = reconnectCount;
+            this.reconnectLatency = reconnectLatency;
+            this.disconnectedMs = disconnectedMs;
+            this.closeCodeCounts = closeCodeCounts;
+            this.droppedEvents = droppedEvents;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getPacketsIn() {
+            return packetsIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getPacketsOut() {
+            return packetsOut;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        /**
+         * Time from {@code sendPacket} to the packet being handed to the socket.
+         */
+        public WSHistogram getSendLatency() {
+            return sendLatency;
+        }
+
+        public WSHistogram getPingRtt() {
+            return pingRtt;
+        }
+
+        public long getSmoothedRttMicros() {
+            return smoothedRttMicros;
+        }
+
+        public long getRttVarianceMicros() {
+            return rttVarianceMicros;
+        }
+
+        public long getReconnectCount() {
+            return reconnectCount;
+        }
+
+        /**
+         * Time between each lost connection and the next verified one.
+         */
+        public WSHistogram getReconnectLatency() {
+            return reconnectLatency;
+        }
+
+        /**
+         * Total time between a lost connection and the next verified one, including the current disconnection.
+         */
+        public long getDisconnectedMs() {
+            return disconnectedMs;
+        }
+
+        public Map<Integer, Long> getCloseCodeCounts() {
+            return closeCodeCounts;
+        }
+
+        /**
+         * Received packet, error and ping events dropped by the dispatch overflow policy.
+         */
+        public long getDroppedEvents() {
+            return droppedEvents;
+        }
+    }
+
+    /**
+     * Replaced as a whole on every change, the fields of one snapshot are always consistent with each other.
+     * The client ID is "WS_PENDING" while verifying and null while not connected, the session ID, info and resumed
+     * flag stay those of the last verified connection. The info object must not be modified.
+     */
+    public static class WSSession {
+        private static final WSSession INITIAL = new WSSession(WSState.CLOSED, null, "", null, false, 0);
+        private final WSState state;
+        private final String clientID;
+        private final String clientSID;
+        private final JSONObject clientInfo;
+        private final boolean isResumed;
+        private final long sequence;
+
+        private WSSession(WSState state, String clientID, String clientSID, JSONObject clientInfo, boolean isResumed, long sequence) {
+            this.state = state;
+            this.clientID = clientID;
+            this.clientSID = clientSID;
+            this.clientInfo = clientInfo;
+            this.isResumed = isResumed;
+            this.sequence = sequence;
+        }
+
+        // The same session when the state does not change.
+        private WSSession withState(WSState state) {
+            if (state == this.state) {
+                return this;
+            }
+            String id = state == WSState.VERIFYING ? "WS_PENDING" : state == WSState.CONNECTED ? clientID : null;
+            return new WSSession(state, id, clientSID, clientInfo, isResumed, sequence + 1);
+        }
+
+        public WSState getState() {
+            return state;
+        }
+
+        public String getClientID() {
+            return clientID;
+        }
+
+        public String getClientSID() {
+            return clientSID;
+        }
+
+        public JSONObject getClientInfo() {
+            return clientInfo;
+        }
+
+        public boolean isResumed() {
+            return isResumed;
+        }
+
+        /**
+         * Increases by one with every state change of the client, 0 before the first one. The current session of a
+         * state listener event is always the next in sequence after its previous session.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    public interface WSPacketHandler {
+        void onPacket(WSClient client, WSPacket packet) throws Exception;
+    }
+
+    public interface WSStateListener {
+        void onStateChanged(WSClient client, WSSession previous, WSSession current) throws Exception;
+    }
+
+    public interface WSFileSink {
+        /**
+         * Called on the socket reader with the packet metadata, before its file data is received. Returns the
+         * stream the file data is written to, closed by the client once the message is complete, or null to
+         * write the file data to a temporary file.
+         */
+        OutputStream openFileData(WSClient client, WSPacket packet) throws Exception;
+    }
+
+    public interface WSUploadListener {
+        void onProgress(WSClient client, long sentBytes, long totalBytes) throws Exception;
+    }
+
+    /**
+     * Levels have the values of the {@code android.util.Log} priorities. Callers check {@link #isLoggable(int)}
+     * before building a message on a frequent path.
+     */
+    public interface WSLogger {
+        int VERBOSE = 2;
+        int DEBUG = 3;
+        int INFO = 4;
+        int WARN = 5;
+        int ERROR = 6;
+        WSLogger DEFAULT = create(DEBUG);
+
+        boolean isLoggable(int level);
+
+        void log(int level, String tag, String message, Throwable throwable);
+
+        default void d(String tag, String message) {
+            if (isLoggable(DEBUG)) {
+                log(DEBUG, tag, message, null);
+            }
+        }
+
+        default void e(String tag, String message) {
+            e(tag, message, null);
+        }
+
+        default void e(String tag, String message, Throwable throwable) {
+            if (isLoggable(ERROR)) {
+                log(ERROR, tag, message, throwable);
+            }
+        }
+
+        /**
+         * Logs to logcat when running on Android, to the standard streams otherwise.
+         */
+        static WSLogger create(int minLevel) {
+            return new WSDefaultLogger(minLevel);
+        }
+    }
+
+    private static class WSDefaultLogger implements WSLogger {
+        // Looked up once so that the client does not depend on the Android framework, invokeExact on a constant
+        // handle is a direct call without boxing or argument arrays.
+        private static final MethodHandle ANDROID_PRINTLN = findAndroidPrintln();
+        private final int minLevel;
+
+        private WSDefaultLogger(int minLevel) {
+            this.minLevel = minLevel;
+        }
+
+        @Override
+        public boolean isLoggable(int level) {
+            return level >= minLevel;
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable throwable) {
+            if (throwable != null) {
+                StringWriter trace = new StringWriter();
+                throwable.printStackTrace(new PrintWriter(trace));
+                message = message + '\n' + trace;
+            }
+            if (ANDROID_PRINTLN != null) {
+                try {
+                    int written = (int) ANDROID_PRINTLN.invokeExact(level, tag, message);
+                    return;
+                } catch (Throwable ignored) {
+                }
+            }
+            (level >= WARN ? System.err : System.out).println("VDIWE".charAt(Math.max(0, Math.min(4, level - VERBOSE))) + "/" + tag + ": " + message);
+        }
+
+        private static MethodHandle findAndroidPrintln() {
+            try {
+                return MethodHandles.publicLookup().findStatic(Class.forName("android.util.Log"), "println",
+                        MethodType.methodType(int.class, int.class, String.class, String.class));
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Encodes and decodes the packet metadata. Packets encoded with a codec other than JSON carry a flag in their
+     * header, so the receiver knows how to decode them.
+     */
+    public interface WSCodec {
+        WSCodec JSON = new WSJsonCodec();
+        WSCodec MSGPACK = new WSMessagePackCodec();
+
+        /**
+         * Name appended to the protocol in the Sec-WebSocket-Protocol negotiation.
+         */
+        String getName();
+
+        void encode(JSONObject metadata, OutputStream output) throws IOException, JSONException;
+
+        JSONObject decode(ByteBuffer data) throws JSONException;
+
+        /**
+         * Returns a top level string field of the metadata map, such as "type", or null. Codecs override it to
+         * avoid a full decode.
+         */
+        default String readString(ByteBuffer data, String key) throws JSONException {
+            return decode(data).optString(key, null);
+        }
+    }
+
+    private static class WSJsonCodec implements WSCodec {
+        @Override
+        public String getName() {
+            return "json";
+        }
+
+        @Override
+        public void encode(JSONObject metadata, OutputStream output) throws IOException {
+            output.write(metadata.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public JSONObject decode(ByteBuffer data) throws JSONException {
+            return new JSONObject(StandardCharsets.UTF_8.decode(data).toString());
+        }
+
+        // Scans the top level keys of the object for the key, nested objects, arrays and strings are skipped.
+        // Escaped keys or an escaped value fall back to a full parse.
+        @Override
+        public String readString(ByteBuffer data, String key) throws JSONException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int end = data.limit();
+            int depth = 0;
+            boolean expectKey = false;
+            for (int i = data.position(); i < end; ) {
+                byte b = data.get(i);
+                if (b == '"') {
+                    int close = i + 1;
+                    boolean escaped = false;
+                    while (close < end && data.get(close) != '"') {
+                        if (data.get(close) == '\\') {
+                            escaped = true;
+                            close++;
+                        }
+                        close++;
+                    }
+                    if (depth == 1 && expectKey) {
+                        if (escaped) {
+                            return WSCodec.super.readString(data, key);
+                        }
+                        if (WSUtils.regionEquals(data, i + 1, close, keyBytes)) {
+                            return readStringValue(data, key, close + 1, end);
+                        }
+                    }
+                    expectKey = false;
+                    i = close + 1;
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                    expectKey = depth == 1;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                } else if (b == ',') {
+                    expectKey = depth == 1;
+                }
+                i++;
+            }
+            return null;
+        }
+
+        private String readStringValue(ByteBuffer data, String key, int i, int end) throws JSONException {
+            while (i < end && (data.get(i) == ':' || Character.isWhitespace(data.get(i)))) {
+                i++;
+            }
+            if (i >= end || data.get(i) != '"') {
+                return null;
+            }
+            int start = ++i;
+            while (i < end && data.get(i) != '"') {
+                if (data.get(i) == '\\') {
+                    return WSCodec.super.readString(data, key);
+                }
+                i++;
+            }
+            ByteBuffer value = data.duplicate();
+            value.limit(i).position(start);
+            return StandardCharsets.UTF_8.decode(value).toString();
+        }
+    }
+
+    /**
+     * MessagePack encoding of JSON values: maps, arrays, strings, integers, doubles, booleans and nil.
+     * Binary values are decoded as Base64 strings.
+     */
+    private static class WSMessagePackCodec implements WSCodec {
+        @Override
+        public String getName() {
+            return "msgpack";
+        }
+
+        @Override
+        public void encode(JSONObject metadata, OutputStream output) throws IOException, JSONException {
+            writeValue(metadata, output);
+        }
+
+        @Override
+        public JSONObject decode(ByteBuffer data) throws JSONException {
+            try {
+                Object value = readValue(data);
+                if (!(value instanceof JSONObject)) {
+                    throw new JSONException("The metadata is not a map.");
+                }
+                return (JSONObject) value;
+            } catch (BufferUnderflowException ex) {
+                throw new JSONException("Truncated MessagePack data.");
+            }
+        }
+
+        // Walks the top level map, the values of the other keys are skipped without being decoded.
+        @Override
+        public String readString(ByteBuffer data, String key) throws JSONException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            try {
+                int prefix = data.get() & 0xff;
+                int size;
+                if ((prefix & 0xf0) == 0x80) {
+                    size = prefix & 0x0f;
+                } else if (prefix == 0xde) {
+                    size = data.getShort() & 0xffff;
+                } else if (prefix == 0xdf) {
+                    size = data.getInt();
+                } else {
+                    throw new JSONException("The metadata is not a map.");
+                }
+                for (int i = 0; i < size; i++) {
+                    int keyLength = readStringHeader(data);
+                    if (keyLength < 0) {
+                        skipValue(data);
+                        skipValue(data);
+                        continue;
+                    }
+                    int keyStart = data.position();
+                    data.position(keyStart + keyLength);
+                    if (WSUtils.regionEquals(data, keyStart, keyStart + keyLength, keyBytes)) {
+                        int valueLength = readStringHeader(data);
+                        return valueLength < 0 ? null : readString(valueLength, data);
+                    }
+                    skipValue(data);
+                }
+                return null;
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                throw new JSONException("Truncated MessagePack data.");
+            }
+        }
+
+        // Reads a string header and returns the length, or -1 without moving when the next value is not a string.
+        private static int readStringHeader(ByteBuffer data) {
+            int prefix = data.get(data.position()) & 0xff;
+            if ((prefix & 0xe0) == 0xa0) {
+                data.get();
+                return prefix & 0x1f;
+            }
+            switch (prefix) {
+                case 0xd9:
+                    data.get();
+                    return data.get() & 0xff;
+                case 0xda:
+                    data.get();
+                    return data.getShort() & 0xffff;
+                case 0xdb:
+                    data.get();
+                    return data.getInt();
+                default:
+                    return -1;
+            }
+        }
+
+        private static void skipValue(ByteBuffer data) throws JSONException {
+            int prefix = data.get() & 0xff;
+            if (prefix <= 0x7f || prefix >= 0xe0) {
+                return;
+            } else if ((prefix & 0xf0) == 0x80) {
+                skipValues(2L * (prefix & 0x0f), data);
+                return;
+            } else if ((prefix & 0xf0) == 0x90) {
+                skipValues(prefix & 0x0f, data);
+                return;
+            } else if ((prefix & 0xe0) == 0xa0) {
+                skipBytes(prefix & 0x1f, data);
+                return;
+            }
+            switch (prefix) {
+                case 0xc0:
+                case 0xc2:
+                case 0xc3:
+                    return;
+                case 0xc4:
+                case 0xd9:
+                    skipBytes(data.get() & 0xff, data);
+                    return;
+                case 0xc5:
+                case 0xda:
+                    skipBytes(data.getShort() & 0xffff, data);
+                    return;
+                case 0xc6:
+                case 0xdb:
+                    skipBytes(data.getInt(), data);
+                    return;
+                case 0xcc:
+                case 0xd0:
+                    skipBytes(1, data);
+                    return;
+                case 0xcd:
+                case 0xd1:
+                    skipBytes(2, data);
+                    return;
+                case 0xca:
+                case 0xce:
+                case 0xd2:
+                    skipBytes(4, data);
+                    return;
+                case 0xcb:
+                case 0xcf:
+                case 0xd3:
+                    skipBytes(8, data);
+                    return;
+                case 0xdc:
+                    skipValues(data.getShort() & 0xffff, data);
+                    return;
+                case 0xdd:
+                    skipValues(data.getInt() & 0xffffffffL, data);
+                    return;
+                case 0xde:
+                    skipValues(2L * (data.getShort() & 0xffff), data);
+                    return;
+                case 0xdf:
+                    skipValues(2L * (data.getInt() & 0xffffffffL), data);
+                    return;
+                default:
+                    throw new JSONException("Unsupported MessagePack type: 0x" + Integer.toHexString(prefix));
+            }
+        }
+
+        private static void skipValues(long count, ByteBuffer data) throws JSONException {
+            for (long i = 0; i < count; i++) {
+                skipValue(data);
+            }
+        }
+
+        private static void skipBytes(int count, ByteBuffer data) {
+            data.position(data.position() + count);
+        }
+
+        private static void writeValue(Object value, OutputStream output) throws IOException, JSONException {
+            if (value == null || value == JSONObject.NULL) {
+                output.write(0xc0);
+            } else if (value instanceof Boolean) {
+                output.write((Boolean) value ? 0xc3 : 0xc2);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                writeInteger(((Number) value).longValue(), output);
+            } else if (value instanceof Number) {
+                output.write(0xcb);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()), 8, output);
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                writeHeader(object.length(), 0x80, 16, 0xde, output);
+                Iterator<String> keys = object.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    writeString(key, output);
+                    writeValue(object.get(key), output);
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                writeHeader(array.length(), 0x90, 16, 0xdc, output);
+                for (int i = 0; i < array.length(); i++) {
+                    writeValue(array.get(i), output);
+                }
+            } else {
+                writeString(value.toString(), output);
+            }
+        }
+
+        private static void writeInteger(long value, OutputStream output) throws IOException {
+            if (value >= 0 && value <= 0x7f) {
+                output.write((int) value);
+            } else if (value < 0 && value >= -32) {
+                output.write((int) value & 0xff);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                output.write(0xd0);
+                writeLong(value, 1, output);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                output.write(0xd1);
+                writeLong(value, 2, output);
+            } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                output.write(0xd2);
+                writeLong(value, 4, output);
+            } else {
+                output.write(0xd3);
+                writeLong(value, 8, output);
+            }
+        }
+
+        private static void writeString(String value, OutputStream output) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length < 32) {
+                output.write(0xa0 | bytes.length);
+            } else if (bytes.length <= 0xff) {
+                output.write(0xd9);
+                writeLong(bytes.length, 1, output);
+            } else if (bytes.length <= 0xffff) {
+                output.write(0xda);
+                writeLong(bytes.length, 2, output);
+            } else {
+                output.write(0xdb);
+                writeLong(bytes.length, 4, output);
+            }
+            output.write(bytes);
+        }
+
+        // Map and array headers: fix form below 16 elements, then 16 or 32 bit sizes.
+        private static void writeHeader(int size, int fixPrefix, int fixLimit, int prefix16, OutputStream output) throws IOException {
+            if (size < fixLimit) {
+                output.write(fixPrefix | size);
+            } else if (size <= 0xffff) {
+                output.write(prefix16);
+                writeLong(size, 2, output);
+            } else {
+                output.write(prefix16 + 1);
+                writeLong(size, 4, output);
+            }
+        }
+
+        private static void writeLong(long value, int bytes, OutputStream output) throws IOException {
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+                output.write((int) (value >>> shift) & 0xff);
+            }
+        }
+
+        private static Object readValue(ByteBuffer data) throws JSONException {
+            int prefix = data.get() & 0xff;
+            if (prefix <= 0x7f) {
+                return prefix;
+            } else if (prefix >= 0xe0) {
+                return (int) (byte) prefix;
+            } else if ((prefix & 0xf0) == 0x80) {
+                return readMap(prefix & 0x0f, data);
+            } else if ((prefix & 0xf0) == 0x90) {
+                return readArray(prefix & 0x0f, data);
+            } else if ((prefix & 0xe0) == 0xa0) {
+                return readString(prefix & 0x1f, data);
+            }
+            switch (prefix) {
+                case 0xc0:
+                    return JSONObject.NULL;
+                case 0xc2:
+                    return false;
+                case 0xc3:
+                    return true;
+                case 0xc4:
+                    return readBinary(data.get() & 0xff, data);
+                case 0xc5:
+                    return readBinary(data.getShort() & 0xffff, data);
+                case 0xc6:
+                    return readBinary(data.getInt(), data);
+                case 0xca:
+                    return (double) data.getFloat();
+                case 0xcb:
+                    return data.getDouble();
+                case 0xcc:
+                    return data.get() & 0xff;
+                case 0xcd:
+                    return data.getShort() & 0xffff;
+                case 0xce:
+                    return toNumber(data.getInt() & 0xffffffffL);
+                case 0xcf:
+                    long unsigned = data.getLong();
+                    if (unsigned < 0) {
+                        throw new JSONException("Unsigned integer out of range.");
+                    }
+                    return toNumber(unsigned);
+                case 0xd0:
+                    return (int) data.get();
+                case 0xd1:
+                    return (int) data.getShort();
+                case 0xd2:
+                    return data.getInt();
+                case 0xd3:
+                    return toNumber(data.getLong());
+                case 0xd9:
+                    return readString(data.get() & 0xff, data);
+                case 0xda:
+                    return readString(data.getShort() & 0xffff, data);
+                case 0xdb:
+                    return readString(data.getInt(), data);
+                case 0xdc:
+                    return readArray(data.getShort() & 0xffff, data);
+                case 0xdd:
+                    return readArray(data.getInt(), data);
+                case 0xde:
+                    return readMap(data.getShort() & 0xffff, data);
+                case 0xdf:
+                    return readMap(data.getInt(), data);
+                default:
+                    throw new JSONException("Unsupported MessagePack type: 0x" + Integer.toHexString(prefix));
+            }
+        }
+
+        private static Object toNumber(long value) {
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (Object) (int) value : (Object) value;
+        }
+
+        private static JSONObject readMap(int size, ByteBuffer data) throws JSONException {
+            JSONObject object = new JSONObject();
+            for (int i = 0; i < size; i++) {
+                object.put(String.valueOf(readValue(data)), readValue(data));
+            }
+            return object;
+        }
+
+        private static JSONArray readArray(int size, ByteBuffer data) throws JSONException {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < size; i++) {
+                array.put(readValue(data));
+            }
+            return array;
+        }
+
+        private static String readString(int length, ByteBuffer data) throws JSONException {
+            if (length < 0 || length > data.remaining()) {
+                throw new JSONException("Invalid MessagePack string length: " + length);
+            }
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + length);
+            data.position(data.position() + length);
+            return StandardCharsets.UTF_8.decode(slice).toString();
+        }
+
+        private static String readBinary(int length, ByteBuffer data) throws JSONException {
+            if (length < 0 || length > data.remaining()) {
+                throw new JSONException("Invalid MessagePack binary length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            return Base64.getEncoder().encodeToString(bytes);
+        }
+    }
+
+    // Gives access to the written bytes without the copy made by toByteArray().
+    private static class WSByteArrayOutput extends ByteArrayOutputStream {
+        private WSByteArrayOutput(int size) {
+            super(size);
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        // Bulk copy of the remaining bytes, direct buffers go through a small intermediate array.
+        private void write(ByteBuffer data) {
+            if (data.hasArray()) {
+                write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+                return;
+            }
+            byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+            while (data.hasRemaining()) {
+                int length = Math.min(data.remaining(), chunk.length);
+                data.get(chunk, 0, length);
+                write(chunk, 0, length);
+            }
         }
     }
 
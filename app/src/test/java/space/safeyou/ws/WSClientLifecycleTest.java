@@ -0,0 +1,144 @@
+package space.safeyou.ws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WSClientLifecycleTest {
+    private WSClient.WSRuntime runtime;
+    private final RecordingLogger logger = new RecordingLogger();
+
+    @Before
+    public void setUp() {
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void tenThousandClientsShareTheRuntimeThreads() throws Exception {
+        WSClient.WSOptions options = WSClient.WSOptions.init()
+                .setUrl("ws://127.0.0.1:9")
+                .setRuntime(runtime)
+                .setLogger(logger);
+        // The runtime starts its threads with the first tasks.
+        for (int i = 0; i < 100; i++) {
+            new WSClient(options, new WSRecordingEvents()).close(0);
+        }
+        int baseline = Thread.activeCount();
+
+        for (int i = 0; i < 10000; i++) {
+            WSClient client = new WSClient(options, new WSRecordingEvents());
+            client.close(0);
+        }
+
+        assertTrue("Threads: " + Thread.activeCount() + ", before: " + baseline, Thread.activeCount() <= baseline + 1);
+    }
+
+    @Test
+    public void connectedClientsReleaseTheirSocketThreads() throws Exception {
+        WSTestServer server = new WSTestServer().startAndWait();
+        try {
+            WSClient.WSOptions options = WSClient.WSOptions.init()
+                    .setUrl(server.getUrl())
+                    .setRuntime(runtime)
+                    .setLogger(logger);
+            // The runtime and dispatch threads start with the first tasks.
+            for (int i = 0; i < 3; i++) {
+                connectAndClose(options);
+            }
+            int baseline = awaitThreadCount(Integer.MAX_VALUE);
+
+            for (int i = 0; i < 50; i++) {
+                connectAndClose(options);
+            }
+
+            // The socket threads of Java-WebSocket end shortly after the close.
+            assertTrue(awaitThreadCount(baseline) <= baseline);
+        } finally {
+            server.stop(1000);
+        }
+    }
+
+    @Test
+    public void closeReleasesTheOutbox() throws Exception {
+        File directory = Files.createTempDirectory("ws-outbox-client").toFile();
+        try {
+            WSClient.WSOptions options = WSClient.WSOptions.init()
+                    .setUrl("ws://127.0.0.1:9")
+                    .setRuntime(runtime)
+                    .setLogger(logger)
+                    .setOutboxDirectory(directory);
+            WSClient first = new WSClient(options, new WSRecordingEvents());
+            new WSClient(options, new WSRecordingEvents()).close(0);
+            assertEquals("The second client shared the outbox directory", 1, logger.outboxErrors());
+
+            first.close(0);
+            new WSClient(options, new WSRecordingEvents()).close(0);
+            assertEquals("The outbox was still locked after close", 1, logger.outboxErrors());
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private void connectAndClose(WSClient.WSOptions options) throws Exception {
+        WSRecordingEvents events = new WSRecordingEvents();
+        WSClient client = new WSClient(options, events);
+        client.connect();
+        events.awaitConnected();
+        client.close(1000);
+        WSRecordingEvents.poll(events.disconnected, 5000, "disconnection");
+    }
+
+    // Waits up to 5 s for the thread count to drop to the target, returns the last count.
+    private static int awaitThreadCount(int target) throws InterruptedException {
+        int count = Thread.activeCount();
+        for (int i = 0; i < 50 && count > target; i++) {
+            Thread.sleep(100);
+            count = Thread.activeCount();
+        }
+        Thread.sleep(200);
+        return Thread.activeCount();
+    }
+
+    private static class RecordingLogger implements WSClient.WSLogger {
+        private final List<String> errors = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean isLoggable(int level) {
+            return level >= ERROR;
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable throwable) {
+            errors.add(message);
+        }
+
+        int outboxErrors() {
+            int count = 0;
+            for (String message : errors) {
+                if (message.startsWith("(OUTBOX)")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
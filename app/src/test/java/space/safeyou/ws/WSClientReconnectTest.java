@@ -0,0 +1,54 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WSClientReconnectTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Test
+    public void reconnectIsCountedInTheMetrics() throws Exception {
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setReconnectIntervalMs(100)
+                .setReconnectJitter(false), events);
+        client.connect();
+        events.awaitConnected();
+        assertEquals(0, client.getMetrics().getReconnectCount());
+
+        for (WebSocket conn : server.getConnections()) {
+            conn.close(1001, "Going away");
+        }
+        events.awaitConnected();
+
+        WSClient.WSMetrics metrics = client.getMetrics();
+        assertEquals(1, metrics.getReconnectCount());
+        assertEquals(1, metrics.getReconnectLatency().getCount());
+        assertTrue(metrics.getReconnectLatency().getMaxMicros() >= 100_000);
+        assertEquals(Long.valueOf(1), metrics.getCloseCodeCounts().get(1001));
+    }
+}
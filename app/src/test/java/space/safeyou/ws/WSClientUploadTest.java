@@ -0,0 +1,81 @@
+package space.safeyou.ws;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WSClientUploadTest {
+    private static final long FILE_SIZE = 384L * 1024 * 1024;
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    // The unit tests run with a 128 MiB heap, the file could not be sent if any part of the path held it in memory.
+    @Test
+    public void mappedUploadLargerThanTheHeapArrivesWhole() throws Exception {
+        assertTrue("The heap is too large for this test", Runtime.getRuntime().maxMemory() < FILE_SIZE / 2);
+        file = File.createTempFile("ws-upload-test", ".bin");
+        String expectedHash = writeRandomFile(file, FILE_SIZE);
+
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setMemoryMappedUploads(true)
+                .setUploadChunkSize(256 * 1024), events);
+        client.connect();
+        events.awaitConnected();
+
+        client.sendPacket(new JSONObject().put("type", "upload"), file, null);
+        WSTestServer.Received upload = server.take(2, 120000);
+
+        assertEquals(FILE_SIZE, upload.fileSize);
+        assertEquals(expectedHash, upload.fileHash);
+        assertEquals(expectedHash, upload.metadata.getString("file_hash"));
+        assertEquals("upload", upload.metadata.getString("type"));
+        assertTrue(events.errors.isEmpty());
+    }
+
+    private static String writeRandomFile(File file, long size) throws Exception {
+        MessageDigest digest = WSTestServer.newDigest();
+        Random random = new Random(46);
+        byte[] chunk = new byte[1024 * 1024];
+        try (OutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                digest.update(chunk);
+                output.write(chunk);
+            }
+        }
+        return WSTestServer.toHex(digest.digest());
+    }
+}
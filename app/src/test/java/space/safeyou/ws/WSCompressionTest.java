@@ -0,0 +1,86 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WSCompressionTest {
+    private static final int FLAG_FILE_COMPRESSED = 0x40;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private WSRecordingEvents events;
+    private WebSocket conn;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setMaxMessageSize(MAX_MESSAGE_SIZE), events);
+        client.connect();
+        events.awaitConnected();
+        conn = server.getConnections().iterator().next();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close(0);
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Test
+    public void compressedFileWithinTheLimitIsInflated() throws Exception {
+        conn.send(compressedPacket(MAX_MESSAGE_SIZE / 2));
+
+        WSClient.WSPacket packet = WSRecordingEvents.poll(events.packets, 5000, "packet");
+        assertEquals(MAX_MESSAGE_SIZE / 2, packet.getFileDataSize());
+        assertTrue(events.errors.isEmpty());
+    }
+
+    @Test
+    public void compressedFileOverTheLimitIsRefused() throws Exception {
+        // 16 MiB of zeros deflate to about 16 KiB.
+        conn.send(compressedPacket(16 * MAX_MESSAGE_SIZE));
+
+        Exception error = WSRecordingEvents.poll(events.errors, 5000, "error");
+        assertTrue(error.toString(), error instanceof DataFormatException);
+        assertNull(events.packets.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private static byte[] compressedPacket(int inflatedSize) {
+        byte[] metadata = new JSONObject().put("type", "compressed").toString().getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater();
+        deflater.setInput(new byte[inflatedSize]);
+        deflater.finish();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            file.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        ByteBuffer frame = ByteBuffer.allocate(5 + metadata.length + file.size());
+        frame.put((byte) 1).put((byte) FLAG_FILE_COMPRESSED);
+        frame.put((byte) (metadata.length >> 16)).put((byte) (metadata.length >> 8)).put((byte) metadata.length);
+        frame.put(metadata).put(file.toByteArray());
+        return frame.array();
+    }
+}
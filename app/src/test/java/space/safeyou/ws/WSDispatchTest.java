@@ -0,0 +1,178 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WSDispatchTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    // The packet callback blocks until the test releases it.
+    private class SlowEvents extends WSRecordingEvents {
+        volatile String callbackThread;
+
+        @Override
+        public void onReceivedPacket(WSClient client, WSClient.WSPacket packet) {
+            callbackThread = Thread.currentThread().getName();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            super.onReceivedPacket(client, packet);
+        }
+    }
+
+    @Test
+    public void slowHandlerDoesNotBlockTheReader() throws Exception {
+        SlowEvents events = new SlowEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime), events);
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        int count = 3000;
+        for (int i = 0; i < count; i++) {
+            server.send(conn, 1, -1, new JSONObject().put("type", "news").put("n", i), null);
+        }
+        // The reader keeps reading and the client keeps sending while the callback is stuck on the first packet.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (client.getMetrics().getPacketsIn() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(client.getMetrics().getPacketsIn() >= count);
+        client.sendPacket(new JSONObject().put("type", "still-sending"));
+        assertEquals("still-sending", server.take(1, 5000).metadata.getString("type"));
+        assertTrue(events.callbackThread.startsWith("WSDispatch-"));
+
+        // DROP_OLDEST by default: the newest packets are kept, the dropped ones are counted.
+        assertTrue(client.getMetrics().getDroppedEvents() > 0);
+        release.countDown();
+        WSClient.WSPacket last = null;
+        WSClient.WSPacket packet;
+        while ((packet = events.packets.poll(500, TimeUnit.MILLISECONDS)) != null) {
+            last = packet;
+        }
+        assertEquals(count - 1, last.getDataAsJSONObject().getInt("n"));
+    }
+
+    // The sequenced packets are acked before their callback runs, dropping one would lose it for good.
+    @Test
+    public void ackedSequencedPacketsAreNotDropped() throws Exception {
+        SlowEvents events = new SlowEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setReliableDelivery(true, 32)
+                .setDispatchQueue(4, WSClient.WSOverflowPolicy.DROP_OLDEST), events);
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        int count = 50;
+        for (int n = 1; n <= count; n++) {
+            server.send(conn, 1, n, new JSONObject().put("type", "news").put("n", n), null);
+        }
+        long acked = 0;
+        while (acked < count) {
+            acked = server.take(WSTestServer.TYPE_ACK, 5000).ackSequence();
+        }
+        release.countDown();
+
+        for (int n = 1; n <= count; n++) {
+            assertEquals(n, WSRecordingEvents.poll(events.packets, 5000, "packet " + n).getDataAsJSONObject().getInt("n"));
+        }
+        assertEquals(0, client.getMetrics().getDroppedEvents());
+    }
+
+    // A shut down executor: the connection and response events still run, the packet events are counted as dropped.
+    @Test
+    public void rejectedDrainRunsTheEventsThatCannotBeDropped() throws Exception {
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setDispatchExecutor(task -> {
+                    throw new RejectedExecutionException("Shut down");
+                }), events);
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        server.send(conn, 1, -1, new JSONObject().put("type", "news"), null);
+        CompletableFuture<WSClient.WSPacket> reply = client.request(new JSONObject().put("type", "query"), 5000);
+        String requestId = server.take(1, 5000).metadata.getString("_rid");
+        server.send(conn, 1, -1, new JSONObject().put("_rid", requestId), null);
+
+        assertEquals(requestId, reply.get(5, TimeUnit.SECONDS).getDataAsJSONObject().getString("_rid"));
+        assertEquals(1, client.getMetrics().getDroppedEvents());
+        assertTrue(events.packets.isEmpty());
+    }
+
+    @Test
+    public void exhaustedReconnectErrorIsNotDropped() throws Exception {
+        SlowEvents events = new SlowEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setReconnectIntervalMs(50)
+                .setReconnectJitter(false)
+                .setReconnectMaxAttempts(1)
+                .setDispatchQueue(2, WSClient.WSOverflowPolicy.FAIL_FAST), events);
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        // The dispatch queue is full of packet events while the connection fails for good.
+        for (int i = 0; i < 5; i++) {
+            server.send(conn, 1, -1, new JSONObject().put("type", "news"), null);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (client.getMetrics().getDroppedEvents() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        server.openHandler = (c, handshake, verification) -> c.close(1001, "Going away");
+        conn.close(1001, "Going away");
+        while (client.getSession().getState() != WSClient.WSState.CLOSED && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(WSClient.WSState.CLOSED, client.getSession().getState());
+
+        release.countDown();
+        Exception error;
+        do {
+            error = WSRecordingEvents.poll(events.errors, 5000, "reconnect error");
+        } while (!error.getMessage().startsWith("Reconnect attempts exhausted"));
+    }
+}
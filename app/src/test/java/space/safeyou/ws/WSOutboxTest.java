@@ -0,0 +1,74 @@
+package space.safeyou.ws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class WSOutboxTest {
+    private static final WSClient.WSLogger SILENT = WSClient.WSLogger.create(WSClient.WSLogger.ERROR + 1);
+    private final WSClient.WSBufferPool pool = new WSClient.WSBufferPool();
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ws-outbox-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void directoryIsLockedWhileOpen() throws IOException {
+        WSClient.WSOutbox first = new WSClient.WSOutbox(directory, 64 * 1024, SILENT);
+        first.open();
+        try {
+            new WSClient.WSOutbox(directory, 64 * 1024, SILENT).open();
+            fail("A second outbox opened the locked directory.");
+        } catch (IOException expected) {
+            // The directory is used by the first outbox.
+        }
+        first.close();
+
+        WSClient.WSOutbox second = new WSClient.WSOutbox(directory, 64 * 1024, SILENT);
+        second.open();
+        second.close();
+    }
+
+    @Test
+    public void unacknowledgedPacketsAreReplayedAfterClose() throws IOException {
+        WSClient.WSOutbox outbox = new WSClient.WSOutbox(directory, 64 * 1024, SILENT);
+        assertEquals(0, outbox.open().size());
+        long first = outbox.append(1, packet("first"), pool);
+        outbox.append(1, packet("second"), pool);
+        outbox.append(1, packet("third"), pool);
+        outbox.acknowledge(first);
+        outbox.close();
+        // A late ack after close is ignored.
+        outbox.acknowledge(first + 1);
+
+        WSClient.WSOutbox reopened = new WSClient.WSOutbox(directory, 64 * 1024, SILENT);
+        assertEquals(2, reopened.open().size());
+        reopened.close();
+    }
+
+    private static WSClient.WSPacket packet(String text) {
+        byte[] metadata = ("{\"type\":\"" + text + "\"}").getBytes(StandardCharsets.UTF_8);
+        return new WSClient.WSPacket(1, metadata.length, metadata);
+    }
+}
@@ -0,0 +1,74 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.PingFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class WSPingTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Test
+    public void latePongOfARetriedPingIsNotAnRttSample() throws Exception {
+        server.holdPongs = true;
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setPingIntervalMs(100)
+                .setPingTimeout(200, 2000), events);
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        PingFrame first = takePing();
+        PingFrame retry = takePing();
+        assertNotEquals(first.getPayloadData(), retry.getPayloadData());
+
+        server.sendPong(conn, first);
+        Thread.sleep(100);
+        assertEquals(0, client.getMetrics().getPingRtt().getCount());
+
+        PingFrame latest = retry;
+        PingFrame next;
+        while ((next = server.pings.poll()) != null) {
+            latest = next;
+        }
+        server.sendPong(conn, latest);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getMetrics().getPingRtt().getCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, client.getMetrics().getPingRtt().getCount());
+    }
+
+    private PingFrame takePing() throws InterruptedException {
+        PingFrame ping = server.pings.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No ping received.", ping);
+        return ping;
+    }
+}
@@ -0,0 +1,55 @@
+package space.safeyou.ws;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the client events in queues the tests wait on.
+ */
+class WSRecordingEvents implements WSClient.WSEvents {
+    final BlockingQueue<String> connected = new LinkedBlockingQueue<>();
+    final BlockingQueue<Integer> disconnected = new LinkedBlockingQueue<>();
+    final BlockingQueue<WSClient.WSPacket> packets = new LinkedBlockingQueue<>();
+    final BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+
+    static <T> T poll(BlockingQueue<T> queue, long timeoutMs, String what) throws InterruptedException {
+        T value = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (value == null) {
+            throw new AssertionError("No " + what + " in " + timeoutMs + " ms.");
+        }
+        return value;
+    }
+
+    String awaitConnected() throws InterruptedException {
+        return poll(connected, 10000, "connection");
+    }
+
+    @Override
+    public void onConnecting(WSClient client) {
+    }
+
+    @Override
+    public void onConnected(WSClient client, String id) {
+        connected.add(id);
+    }
+
+    @Override
+    public void onDisconnected(WSClient client, int code, String reason) {
+        disconnected.add(code);
+    }
+
+    @Override
+    public void onReceivedPacket(WSClient client, WSClient.WSPacket packet) {
+        packets.add(packet);
+    }
+
+    @Override
+    public void onError(WSClient client, Exception exception) {
+        errors.add(exception);
+    }
+
+    @Override
+    public void onPingTime(WSClient client, long milliseconds) {
+    }
+}
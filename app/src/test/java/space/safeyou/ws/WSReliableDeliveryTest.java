@@ -0,0 +1,255 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.enums.Opcode;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reliable mode over a connection that loses packets: the server drops packets at random in both directions and
+ * closes the connection shortly after, as a lost link would. Every packet must be delivered exactly once.
+ */
+public class WSReliableDeliveryTest {
+    private static final int COUNT = 300;
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private ScheduledExecutorService closer;
+    private final Random random = new Random(46);
+    private final Object lock = new Object();
+    // Client to server: the next sequence number expected, the packets after a loss are dropped until the resume.
+    private long expectedUp = 1;
+    private boolean isDroppingUp;
+    private final List<Integer> receivedUp = new ArrayList<>();
+    // Server to client: the last sequence number the client reported with no gap before it.
+    private long resumeDown = -1;
+    private volatile WebSocket conn;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        closer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        closer.shutdownNow();
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Test
+    public void randomDropsLoseAndDuplicateNothingInEitherDirection() throws Exception {
+        server.openHandler = (c, handshake, verification) -> {
+            synchronized (lock) {
+                String resume = handshake.getFieldValue("X-Resume-Sequence");
+                if (!resume.isEmpty()) {
+                    resumeDown = Long.parseLong(resume);
+                }
+                verification.put("ack", expectedUp - 1);
+                isDroppingUp = false;
+            }
+            conn = c;
+        };
+        server.packetHandler = (c, packet) -> {
+            if (packet.type != 1) {
+                return;
+            }
+            synchronized (lock) {
+                if (isDroppingUp || packet.sequence != expectedUp) {
+                    return;
+                }
+                if (random.nextInt(10) == 0) {
+                    isDroppingUp = true;
+                    closer.schedule(() -> c.close(1001, "Lost"), 20, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                receivedUp.add(packet.metadata.getInt("n"));
+                expectedUp++;
+            }
+            if (c.isOpen()) {
+                server.sendAck(c, packet.sequence);
+            }
+        };
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setReliableDelivery(true, 32)
+                .setReconnectIntervalMs(20)
+                .setReconnectBackoff(100, 1.0)
+                .setReconnectJitter(false), events);
+        client.connect();
+        events.awaitConnected();
+
+        Thread sender = new Thread(() -> {
+            for (int n = 1; n <= COUNT; n++) {
+                client.sendPacket(new JSONObject().put("type", "up").put("n", n));
+            }
+        });
+        sender.start();
+
+        List<Integer> receivedDown = new ArrayList<>();
+        long next = 1;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (receivedDown.size() < COUNT && System.nanoTime() < deadline) {
+            WSClient.WSPacket packet;
+            while ((packet = events.packets.poll()) != null) {
+                receivedDown.add(packet.getDataAsJSONObject().getInt("n"));
+            }
+            WebSocket current = conn;
+            if (client.getSession().getState() != WSClient.WSState.CONNECTED || current == null || !current.isOpen()) {
+                Thread.sleep(5);
+                continue;
+            }
+            synchronized (lock) {
+                if (resumeDown >= 0) {
+                    next = resumeDown + 1;
+                    resumeDown = -1;
+                }
+            }
+            if (next > COUNT) {
+                // Everything was sent once, a loss near the end is only repaired by a resume.
+                Thread.sleep(50);
+                if (events.packets.isEmpty() && receivedDown.size() < COUNT) {
+                    current.close(1001, "Lost");
+                }
+                continue;
+            }
+            if (random.nextInt(10) == 0) {
+                next++;
+                if (random.nextBoolean()) {
+                    current.close(1001, "Lost");
+                }
+                continue;
+            }
+            server.send(current, 1, next, new JSONObject().put("type", "down").put("n", next), null);
+            next++;
+        }
+        sender.join(10000);
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            synchronized (lock) {
+                if (receivedUp.size() >= COUNT) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        assertExactlyOnce("server to client", receivedDown);
+        synchronized (lock) {
+            assertExactlyOnce("client to server", receivedUp);
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals("client to server order", i + 1, (int) receivedUp.get(i));
+            }
+        }
+        assertTrue("No packet was dropped", server.connections.get() > 2);
+    }
+
+    // The acks of the packets received during an upload wait for its last fragment.
+    @Test
+    public void acksDoNotSplitAFragmentedUpload() throws Exception {
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setReliableDelivery(true, 32)
+                .setUploadChunkSize(16 * 1024), events);
+        client.connect();
+        events.awaitConnected();
+        WebSocket current = server.getConnections().iterator().next();
+        byte[] content = new byte[4 * 1024 * 1024];
+        random.nextBytes(content);
+        File file = File.createTempFile("ws-reliable-test", ".bin");
+        try {
+            Files.write(file.toPath(), content);
+            client.sendPacket(new JSONObject().put("type", "upload"), file, null);
+            for (int n = 1; server.received.stream().noneMatch(packet -> packet.type == 2) && n < 2000; n++) {
+                server.send(current, 1, n, new JSONObject().put("type", "down").put("n", n), null);
+                Thread.sleep(5);
+            }
+            WSTestServer.Received upload = server.take(2, 30000);
+            assertEquals(WSTestServer.sha256(content), upload.fileHash);
+            assertTrue(current.isOpen());
+            assertEquals(1, server.connections.get());
+        } finally {
+            file.delete();
+        }
+    }
+
+    // A streamed packet is acked once its file is complete, its resent copy is skipped.
+    @Test
+    public void streamedSequencedPacketIsDeliveredOnce() throws Exception {
+        File directory = Files.createTempDirectory("ws-reliable-test").toFile();
+        try {
+            WSRecordingEvents events = new WSRecordingEvents();
+            client = new WSClient(WSClient.WSOptions.init()
+                    .setUrl(server.getUrl())
+                    .setRuntime(runtime)
+                    .setReliableDelivery(true, 32)
+                    .setStreamingReceive(4096, null, directory), events);
+            client.connect();
+            events.awaitConnected();
+            WebSocket current = server.getConnections().iterator().next();
+            byte[] content = new byte[64 * 1024];
+            random.nextBytes(content);
+            byte[] message = WSTestServer.encode(2, 1, new JSONObject().put("type", "file")
+                    .put("file_hash", WSTestServer.sha256(content)), content);
+
+            sendFragmented(current, message);
+            sendFragmented(current, message);
+
+            WSClient.WSPacket packet = WSRecordingEvents.poll(events.packets, 5000, "streamed packet");
+            assertEquals(1, packet.getSequence());
+            assertArrayEquals(content, Files.readAllBytes(packet.getReceivedFile().toPath()));
+            assertNull("The duplicate was delivered", events.packets.poll(500, TimeUnit.MILLISECONDS));
+            assertEquals(1, server.take(WSTestServer.TYPE_ACK, 5000).ackSequence());
+            assertTrue(events.errors.isEmpty());
+            packet.getReceivedFile().delete();
+        } finally {
+            directory.delete();
+        }
+    }
+
+    private static void sendFragmented(WebSocket conn, byte[] message) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        while (buffer.hasRemaining()) {
+            ByteBuffer fragment = buffer.duplicate();
+            fragment.limit(Math.min(buffer.limit(), buffer.position() + 8192));
+            buffer.position(fragment.limit());
+            conn.sendFragmentedFrame(Opcode.BINARY, fragment, !buffer.hasRemaining());
+        }
+    }
+
+    private static void assertExactlyOnce(String direction, List<Integer> received) {
+        Set<Integer> unique = new HashSet<>(received);
+        assertEquals(direction + " duplicates: " + received, received.size(), unique.size());
+        for (int n = 1; n <= COUNT; n++) {
+            assertTrue(direction + " lost " + n, unique.contains(n));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WSRequestTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private WSRecordingEvents events;
+    private WebSocket conn;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime), events);
+        client.connect();
+        events.awaitConnected();
+        conn = server.getConnections().iterator().next();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close(0);
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Test
+    public void repliesInAnyOrderCompleteTheirOwnRequest() throws Exception {
+        List<JSONObject> sent = new ArrayList<>();
+        List<CompletableFuture<WSClient.WSPacket>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            JSONObject metadata = new JSONObject().put("type", "query").put("n", i);
+            sent.add(metadata);
+            futures.add(client.request(metadata, 5000));
+        }
+        List<WSTestServer.Received> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requests.add(server.take(1, 5000));
+        }
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            JSONObject request = requests.get(i).metadata;
+            server.send(conn, 1, -1, new JSONObject().put("_rid", request.getString("_rid")).put("echo", request.getInt("n")), null);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, futures.get(i).get(5, TimeUnit.SECONDS).getDataAsJSONObject().getInt("echo"));
+            assertFalse("The caller's metadata was changed", sent.get(i).has("_rid"));
+        }
+        assertTrue(events.packets.isEmpty());
+    }
+
+    @Test
+    public void unansweredRequestTimesOutAndItsLateReplyIsAPacket() throws Exception {
+        CompletableFuture<WSClient.WSPacket> future = client.request(new JSONObject().put("type", "query"), 100);
+        String requestId = server.take(1, 5000).metadata.getString("_rid");
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The request did not time out.");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+
+        server.send(conn, 1, -1, new JSONObject().put("_rid", requestId).put("type", "late"), null);
+        assertEquals("late", WSRecordingEvents.poll(events.packets, 5000, "late reply").getMessageType());
+    }
+
+    // nanoTime() plus the unclamped timeout overflows to a deadline in the past.
+    @Test
+    public void hugeTimeoutDoesNotExpireTheRequest() throws Exception {
+        CompletableFuture<WSClient.WSPacket> future = client.request(new JSONObject().put("type", "query"), Long.MAX_VALUE);
+        String requestId = server.take(1, 5000).metadata.getString("_rid");
+        Thread.sleep(300);
+        assertFalse(future.isDone());
+
+        server.send(conn, 1, -1, new JSONObject().put("_rid", requestId), null);
+        future.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,131 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The test server stands in for a server keeping the session: on a reconnect it reads the X-Resume-Sequence
+ * header, answers with "resumed" and "ack" but without "info", and replays only the packets after the header.
+ */
+public class WSResumeTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private WSRecordingEvents events;
+    private final BlockingQueue<String> resumeHeaders = new LinkedBlockingQueue<>();
+    // The packets sent to the client by sequence number, index 0 is sequence 1.
+    private final List<JSONObject> log = new ArrayList<>();
+    private volatile long serverAck;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        server.openHandler = (conn, handshake, verification) -> {
+            String header = handshake.getFieldValue("X-Resume-Sequence");
+            if (header.isEmpty()) {
+                return;
+            }
+            resumeHeaders.add(header);
+            verification.remove("info");
+            verification.put("ack", serverAck);
+        };
+        events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setReliableDelivery(true, 32)
+                .setReconnectIntervalMs(50)
+                .setReconnectJitter(false), events);
+        client.connect();
+        events.awaitConnected();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close(0);
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Test
+    public void reconnectReplaysOnlyTheMissedPackets() throws Exception {
+        WebSocket conn = server.getConnections().iterator().next();
+        for (int n = 1; n <= 8; n++) {
+            log.add(new JSONObject().put("type", "down").put("n", n));
+        }
+        for (int n = 1; n <= 5; n++) {
+            server.send(conn, 1, n, log.get(n - 1), null);
+        }
+        awaitAck(5);
+        // 6 to 8 are lost with the connection.
+        conn.close(1001, "Handover");
+
+        assertEquals("5", WSRecordingEvents.poll(resumeHeaders, 10000, "resume header"));
+        events.awaitConnected();
+        WebSocket resumed = newestConnection(conn);
+        for (int n = 6; n <= 8; n++) {
+            server.send(resumed, 1, n, log.get(n - 1), null);
+        }
+
+        for (int n = 1; n <= 8; n++) {
+            assertEquals(n, WSRecordingEvents.poll(events.packets, 5000, "packet " + n).getDataAsJSONObject().getInt("n"));
+        }
+        assertNull(events.packets.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(client.isSessionResumed());
+        // "info" was not sent again, the one of the first verification is kept.
+        assertEquals("test", client.getClientInfo().getString("name"));
+    }
+
+    @Test
+    public void verificationAckLimitsWhatTheClientSendsAgain() throws Exception {
+        WebSocket conn = server.getConnections().iterator().next();
+        for (int n = 1; n <= 5; n++) {
+            client.sendPacket(new JSONObject().put("type", "up").put("n", n));
+        }
+        for (int n = 1; n <= 5; n++) {
+            assertEquals(n, server.take(1, 5000).sequence);
+        }
+        // The server kept 1 to 3 but its acks were lost.
+        serverAck = 3;
+        conn.close(1001, "Handover");
+        WSRecordingEvents.poll(resumeHeaders, 10000, "resume header");
+        events.awaitConnected();
+
+        assertEquals(4, server.take(1, 5000).sequence);
+        assertEquals(5, server.take(1, 5000).sequence);
+        assertNull(server.received.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    // Waits for the client ack of the sequence number, acks are sent at most every 50 ms.
+    private void awaitAck(long sequence) throws InterruptedException {
+        while (true) {
+            WSTestServer.Received ack = server.take(WSTestServer.TYPE_ACK, 5000);
+            if (ack.ackSequence() >= sequence) {
+                return;
+            }
+        }
+    }
+
+    private WebSocket newestConnection(WebSocket previous) {
+        for (WebSocket conn : server.getConnections()) {
+            if (conn != previous) {
+                return conn;
+            }
+        }
+        throw new AssertionError("No new connection.");
+    }
+}
@@ -0,0 +1,120 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WSRouterTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    // A "type" key nested in an object or an array, or appearing as a value, is not the message type.
+    @Test
+    public void typeScanReadsOnlyTheTopLevelKey() throws Exception {
+        JSONObject metadata = new JSONObject()
+                .put("data", new JSONObject().put("type", "nested"))
+                .put("list", new JSONArray().put(new JSONObject().put("type", "in-array")))
+                .put("label", "type")
+                .put("type", "dialog.show");
+        for (WSClient.WSCodec codec : new WSClient.WSCodec[]{WSClient.WSCodec.JSON, WSClient.WSCodec.MSGPACK}) {
+            ByteBuffer data = encode(codec, metadata);
+            assertEquals(codec.getName(), "dialog.show", codec.readString(data.duplicate(), "type"));
+            assertNull(codec.getName(), codec.readString(encode(codec, new JSONObject().put("data",
+                    new JSONObject().put("type", "nested"))), "type"));
+            assertNull(codec.getName(), codec.readString(encode(codec, new JSONObject().put("type", 1)), "type"));
+        }
+    }
+
+    @Test
+    public void typeScanFallsBackToAParseForEscapedStrings() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap("{\"m\\u0073g\":\"a\",\"type\":\"quote\\\"d\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("quote\"d", WSClient.WSCodec.JSON.readString(data, "type"));
+        ByteBuffer spaced = ByteBuffer.wrap("{ \"data\" : {\"type\":\"x\"} , \"type\" : \"spaced\" }".getBytes(StandardCharsets.UTF_8));
+        assertEquals("spaced", WSClient.WSCodec.JSON.readString(spaced, "type"));
+    }
+
+    @Test
+    public void packetsAreRoutedByTypeAndUnroutedOnesGoToTheEvents() throws Exception {
+        BlockingQueue<WSClient.WSPacket> routed = new LinkedBlockingQueue<>();
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime), events);
+        client.addPacketHandler("dialog.show", (c, packet) -> routed.add(packet));
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        server.send(conn, 1, -1, new JSONObject().put("type", "dialog.show").put("data", new JSONObject().put("id", 7)), null);
+        server.send(conn, 1, -1, new JSONObject().put("type", "news"), null);
+
+        WSClient.WSPacket packet = WSRecordingEvents.poll(routed, 5000, "routed packet");
+        assertEquals("dialog.show", packet.getMessageType());
+        assertEquals(7, packet.getDataAsJSONObject().getJSONObject("data").getInt("id"));
+        assertEquals("news", WSRecordingEvents.poll(events.packets, 5000, "unrouted packet").getMessageType());
+        assertTrue(routed.isEmpty());
+
+        client.removePacketHandler("dialog.show");
+        server.send(conn, 1, -1, new JSONObject().put("type", "dialog.show"), null);
+        assertEquals("dialog.show", WSRecordingEvents.poll(events.packets, 5000, "packet after removal").getMessageType());
+    }
+
+    @Test
+    public void unroutedPacketsAreDroppedWhenAsked() throws Exception {
+        BlockingQueue<WSClient.WSPacket> routed = new LinkedBlockingQueue<>();
+        WSRecordingEvents events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setDropUnroutedPackets(true), events);
+        client.addPacketHandler("location", (c, packet) -> routed.add(packet));
+        client.connect();
+        events.awaitConnected();
+        WebSocket conn = server.getConnections().iterator().next();
+
+        server.send(conn, 1, -1, new JSONObject().put("type", "news"), null);
+        server.send(conn, 1, -1, new JSONObject().put("no_type", true), null);
+        server.send(conn, 1, -1, new JSONObject().put("type", "location"), null);
+
+        // The packets are handled in order, once the routed one arrives the others were dropped.
+        assertEquals("location", WSRecordingEvents.poll(routed, 5000, "routed packet").getMessageType());
+        assertNull(events.packets.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(events.errors.isEmpty());
+    }
+
+    private static ByteBuffer encode(WSClient.WSCodec codec, JSONObject metadata) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        codec.encode(metadata, output);
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+}
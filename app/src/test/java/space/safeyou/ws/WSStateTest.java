@@ -0,0 +1,166 @@
+package space.safeyou.ws;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WSStateTest {
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private final List<WSClient.WSSession[]> changes = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    private WSClient newClient(String url, WSRecordingEvents events) throws Exception {
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(url)
+                .setRuntime(runtime)
+                .setReconnectIntervalMs(10)
+                .setReconnectJitter(false), events);
+        client.addStateListener((c, previous, current) -> {
+            synchronized (changes) {
+                changes.add(new WSClient.WSSession[]{previous, current});
+                changes.notifyAll();
+            }
+        });
+        return client;
+    }
+
+    // Waits until the listener has seen the change to the current session.
+    private void awaitChanges() throws InterruptedException {
+        long sequence = client.getSession().getSequence();
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (changes) {
+            while (changes.isEmpty() || changes.get(changes.size() - 1)[1].getSequence() < sequence) {
+                long waitMs = deadline - System.currentTimeMillis();
+                assertTrue("The listener did not see the change " + sequence, waitMs > 0);
+                changes.wait(waitMs);
+            }
+        }
+    }
+
+    @Test
+    public void listenerSeesTheChangesInOrder() throws Exception {
+        // Every connection is closed at once, the client keeps reconnecting while the test disconnects it too.
+        server.openHandler = (conn, handshake, verification) -> conn.close(1001, "Going away");
+        newClient(server.getUrl(), new WSRecordingEvents());
+        for (int i = 0; i < 20; i++) {
+            client.connect();
+            Thread.sleep(5);
+            client.disconnect(1000, "Again");
+        }
+        client.close(0);
+        awaitChanges();
+
+        synchronized (changes) {
+            assertTrue(changes.size() > 20);
+            for (int i = 0; i < changes.size(); i++) {
+                WSClient.WSSession previous = changes.get(i)[0];
+                WSClient.WSSession current = changes.get(i)[1];
+                assertEquals(previous.getSequence() + 1, current.getSequence());
+                if (i > 0) {
+                    assertSame("Change " + i + " is out of order", changes.get(i - 1)[1], previous);
+                }
+            }
+        }
+    }
+
+    // The handshake answer is held until the client was disconnected, the late socket must not be verified.
+    @Test
+    public void socketOpenedAfterDisconnectIsClosed() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            CountDownLatch handshakeReceived = new CountDownLatch(1);
+            CountDownLatch answer = new CountDownLatch(1);
+            BlockingQueue<Integer> firstByte = new LinkedBlockingQueue<>();
+            Thread stub = new Thread(() -> {
+                try (Socket socket = listener.accept()) {
+                    String key = readHandshakeKey(socket.getInputStream());
+                    handshakeReceived.countDown();
+                    answer.await();
+                    OutputStream output = socket.getOutputStream();
+                    output.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                            + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    output.flush();
+                    firstByte.add(socket.getInputStream().read());
+                } catch (Exception ex) {
+                    firstByte.add(-2);
+                }
+            });
+            stub.start();
+
+            WSRecordingEvents events = new WSRecordingEvents();
+            newClient("ws://127.0.0.1:" + listener.getLocalPort(), events);
+            client.connect();
+            assertTrue(handshakeReceived.await(5, TimeUnit.SECONDS));
+            client.disconnect(1000, "Cancelled");
+            answer.countDown();
+
+            Integer frame = firstByte.poll(5, TimeUnit.SECONDS);
+            assertNotNull("The socket was left open", frame);
+            assertEquals("Expected a close frame", 0x88, frame & 0xFF);
+            stub.join(5000);
+            awaitChanges();
+            assertEquals(WSClient.WSState.CLOSED, client.getSession().getState());
+            synchronized (changes) {
+                for (WSClient.WSSession[] change : changes) {
+                    assertTrue(change[1].getState() != WSClient.WSState.VERIFYING);
+                }
+            }
+            assertTrue(events.connected.isEmpty());
+        }
+    }
+
+    private static String readHandshakeKey(InputStream input) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII));
+        String key = null;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                key = line.substring(line.indexOf(':') + 1).trim();
+            }
+        }
+        return key;
+    }
+
+    private static String acceptKey(String key) throws Exception {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        byte[] digest = sha1.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.US_ASCII));
+        return Base64.getEncoder().encodeToString(digest);
+    }
+}
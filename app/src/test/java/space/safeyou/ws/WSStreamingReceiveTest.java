@@ -0,0 +1,155 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.enums.Opcode;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WSStreamingReceiveTest {
+    private static final int FLAG_FILE_COMPRESSED = 0x40;
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private File directory;
+    private WSRecordingEvents events;
+    private WebSocket conn;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        directory = Files.createTempDirectory("ws-receive-test").toFile();
+        events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setMaxMessageSize(MAX_MESSAGE_SIZE)
+                .setStreamingReceive(4096, null, directory), events);
+        client.connect();
+        events.awaitConnected();
+        conn = server.getConnections().iterator().next();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close(0);
+        runtime.shutdown();
+        server.stop(1000);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void compressedFileWithinTheLimitIsStreamedWhole() throws Exception {
+        byte[] content = new byte[256 * 1024];
+        new Random(46).nextBytes(content);
+        sendFragmented(new JSONObject().put("type", "file").put("file_hash", WSTestServer.sha256(content)), deflate(content));
+
+        WSClient.WSPacket packet = WSRecordingEvents.poll(events.packets, 5000, "streamed packet");
+        assertTrue(packet.isFileDataStreamed());
+        assertEquals(content.length, packet.getFileDataSize());
+        assertArrayEquals(content, Files.readAllBytes(packet.getReceivedFile().toPath()));
+        assertTrue(events.errors.isEmpty());
+    }
+
+    // 16 MiB of zeros deflate to about 16 KiB, well under the message limit on the wire.
+    @Test
+    public void inflatedFileOverTheLimitFailsTheReceive() throws Exception {
+        byte[] compressed = deflate(new byte[16 * MAX_MESSAGE_SIZE]);
+        assertTrue(compressed.length < MAX_MESSAGE_SIZE);
+        sendFragmented(new JSONObject().put("type", "bomb"), compressed);
+
+        Exception error = WSRecordingEvents.poll(events.errors, 5000, "receive error");
+        assertTrue(error.getMessage(), error.getMessage().startsWith("The inflated file data is larger than"));
+        assertEquals(0, directory.listFiles().length);
+
+        // The connection stays usable, the next message is received.
+        server.send(conn, 1, -1, new JSONObject().put("type", "after"), null);
+        assertEquals("after", WSRecordingEvents.poll(events.packets, 5000, "packet after the failed one").getMessageType());
+    }
+
+    @Test
+    public void treeHashedFileIsVerifiedWithItsLeafSize() throws Exception {
+        byte[] content = new byte[200 * 1024];
+        new Random(46).nextBytes(content);
+        sendFragmented(new JSONObject().put("type", "file")
+                .put("file_hash", treeHash(content, 64 * 1024))
+                .put("file_hash_leaf", 64 * 1024), deflate(content));
+
+        WSClient.WSPacket packet = WSRecordingEvents.poll(events.packets, 5000, "streamed packet");
+        assertArrayEquals(content, Files.readAllBytes(packet.getReceivedFile().toPath()));
+        assertTrue(events.errors.isEmpty());
+    }
+
+    // A leaf of 1 byte would make the client compute a digest per byte received.
+    @Test
+    public void leafSizeUnder64KiBFailsTheReceive() throws Exception {
+        byte[] content = new byte[64 * 1024];
+        new Random(46).nextBytes(content);
+        sendFragmented(new JSONObject().put("type", "file")
+                .put("file_hash", treeHash(content, 1))
+                .put("file_hash_leaf", 1), deflate(content));
+
+        Exception error = WSRecordingEvents.poll(events.errors, 5000, "receive error");
+        assertEquals("Invalid file hash leaf size: 1", error.getMessage());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private void sendFragmented(JSONObject metadata, byte[] fileData) {
+        byte[] json = metadata.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = ByteBuffer.allocate(5 + json.length + fileData.length);
+        message.put((byte) 2).put((byte) FLAG_FILE_COMPRESSED);
+        message.put((byte) (json.length >> 16)).put((byte) (json.length >> 8)).put((byte) json.length);
+        message.put(json).put(fileData).flip();
+        while (message.hasRemaining()) {
+            ByteBuffer fragment = message.duplicate();
+            fragment.limit(Math.min(message.limit(), message.position() + 8192));
+            message.position(fragment.limit());
+            conn.sendFragmentedFrame(Opcode.BINARY, fragment, !message.hasRemaining());
+        }
+    }
+
+    private static String treeHash(byte[] data, int leafSize) {
+        MessageDigest root = WSTestServer.newDigest();
+        for (int offset = 0; offset < data.length; offset += leafSize) {
+            MessageDigest leaf = WSTestServer.newDigest();
+            leaf.update(data, offset, Math.min(leafSize, data.length - offset));
+            root.update(leaf.digest());
+        }
+        return WSTestServer.toHex(root.digest());
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            output.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,359 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.PingFrame;
+import org.java_websocket.framing.PongFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the SafeYou server. It speaks the packet format with its own encoder and decoder (JSON
+ * metadata, no packet compression), answers every connection with a verification packet and records the packets
+ * it receives. Fragmented messages are hashed and counted as their frames arrive instead of being assembled, so
+ * uploads larger than the heap can be checked.
+ */
+class WSTestServer extends WebSocketServer {
+    static final int TYPE_BATCH = -2;
+    static final int TYPE_ACK = -3;
+    private static final int FLAG_SEQUENCED = 0x10;
+    // File data of a fragmented message is only kept up to this size, larger files are only hashed and counted.
+    private static final int KEPT_FILE_SIZE = 1024 * 1024;
+
+    final String sid = "test-session";
+    final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+    final AtomicInteger connections = new AtomicInteger();
+    private final CountDownLatch started = new CountDownLatch(1);
+    final BlockingQueue<PingFrame> pings = new LinkedBlockingQueue<>();
+    volatile OpenHandler openHandler;
+    volatile PacketHandler packetHandler;
+    // When set the pings are queued instead of answered, the test sends the pongs.
+    volatile boolean holdPongs;
+
+    interface OpenHandler {
+        // Called before the verification packet is sent, it can change it or close the connection instead.
+        void onOpen(WebSocket conn, ClientHandshake handshake, JSONObject verification) throws Exception;
+    }
+
+    interface PacketHandler {
+        void onPacket(WebSocket conn, Received packet) throws Exception;
+    }
+
+    static class Received {
+        final int type;
+        final long sequence;
+        final JSONObject metadata;
+        final byte[] fileData;
+        final long fileSize;
+        final String fileHash;
+
+        Received(int type, long sequence, JSONObject metadata, byte[] fileData, long fileSize, String fileHash) {
+            this.type = type;
+            this.sequence = sequence;
+            this.metadata = metadata;
+            this.fileData = fileData;
+            this.fileSize = fileSize;
+            this.fileHash = fileHash;
+        }
+
+        // The body of an ack packet.
+        long ackSequence() {
+            return ByteBuffer.wrap(fileData).getLong();
+        }
+    }
+
+    WSTestServer() {
+        this(new StreamingDraft());
+    }
+
+    private WSTestServer(StreamingDraft draft) {
+        super(new InetSocketAddress("127.0.0.1", 0), Collections.<Draft>singletonList(draft));
+        draft.server = this;
+        setReuseAddr(true);
+    }
+
+    WSTestServer startAndWait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The test server did not start.");
+        }
+        return this;
+    }
+
+    String getUrl() {
+        return "ws://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Waits for the next packet of the type, the packets of other types received before it are skipped.
+     */
+    Received take(int type, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            Received packet = received.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (packet == null) {
+                throw new AssertionError("No packet of type " + type + " received in " + timeoutMs + " ms.");
+            }
+            if (packet.type == type) {
+                return packet;
+            }
+        }
+    }
+
+    void send(WebSocket conn, int type, long sequence, JSONObject metadata, byte[] fileData) {
+        conn.send(encode(type, sequence, metadata, fileData));
+    }
+
+    void sendAck(WebSocket conn, long sequence) {
+        byte[] frame = new byte[13];
+        frame[0] = (byte) TYPE_ACK;
+        ByteBuffer.wrap(frame, 5, 8).putLong(sequence);
+        conn.send(frame);
+    }
+
+    void sendPong(WebSocket conn, PingFrame ping) {
+        conn.sendFrame(new PongFrame(ping));
+    }
+
+    @Override
+    public void onWebsocketPing(WebSocket conn, Framedata f) {
+        if (holdPongs) {
+            pings.add((PingFrame) f);
+        } else {
+            super.onWebsocketPing(conn, f);
+        }
+    }
+
+    static byte[] encode(int type, long sequence, JSONObject metadata, byte[] fileData) {
+        byte[] json = metadata == null ? new byte[0] : metadata.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] file = fileData == null ? new byte[0] : fileData;
+        int headerSize = sequence < 0 ? 5 : 13;
+        ByteBuffer frame = ByteBuffer.allocate(headerSize + json.length + file.length);
+        frame.put((byte) type);
+        frame.put((byte) (sequence < 0 ? 0 : FLAG_SEQUENCED));
+        frame.put((byte) (json.length >> 16)).put((byte) (json.length >> 8)).put((byte) json.length);
+        if (sequence >= 0) {
+            frame.putLong(sequence);
+        }
+        frame.put(json).put(file);
+        return frame.array();
+    }
+
+    static List<Received> decode(ByteBuffer message) {
+        List<Received> packets = new ArrayList<>();
+        ByteBuffer data = message.duplicate();
+        int type = data.get();
+        int flags = data.get() & 0xFF;
+        int metadataLen = ((data.get() & 0xFF) << 16) | ((data.get() & 0xFF) << 8) | (data.get() & 0xFF);
+        long sequence = (flags & FLAG_SEQUENCED) != 0 ? data.getLong() : -1;
+        if (type == TYPE_BATCH) {
+            while (data.hasRemaining()) {
+                ByteBuffer entry = data.duplicate();
+                int length = entry.getInt();
+                entry.limit(entry.position() + length);
+                data.position(data.position() + 4 + length);
+                packets.addAll(decode(entry));
+            }
+            return packets;
+        }
+        if ((flags & ~FLAG_SEQUENCED) != 0) {
+            throw new IllegalArgumentException("Compressed or binary metadata is not supported, flags: " + flags);
+        }
+        byte[] metadata = new byte[metadataLen];
+        data.get(metadata);
+        byte[] fileData = new byte[data.remaining()];
+        data.get(fileData);
+        JSONObject json = metadataLen == 0 ? null : new JSONObject(new String(metadata, StandardCharsets.UTF_8));
+        packets.add(new Received(type, sequence, json, fileData, fileData.length, sha256(fileData)));
+        return packets;
+    }
+
+    static String sha256(byte[] data) {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        int id = connections.incrementAndGet();
+        try {
+            JSONObject verification = new JSONObject()
+                    .put("id", "client-" + id)
+                    .put("sid", sid)
+                    .put("info", new JSONObject().put("name", "test"));
+            String cookie = handshake.getFieldValue("Cookie");
+            if (cookie != null && cookie.contains("X-Session-ID=" + sid)) {
+                verification.put("resumed", true);
+            }
+            OpenHandler handler = openHandler;
+            if (handler != null) {
+                handler.onOpen(conn, handshake, verification);
+            }
+            if (conn.isOpen()) {
+                send(conn, 0, -1, verification, null);
+            }
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        for (Received packet : decode(message)) {
+            onPacket(conn, packet);
+        }
+    }
+
+    private void onPacket(WebSocket conn, Received packet) {
+        received.add(packet);
+        PacketHandler handler = packetHandler;
+        if (handler == null) {
+            return;
+        }
+        try {
+            handler.onPacket(conn, packet);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        ex.printStackTrace();
+    }
+
+    /**
+     * Takes the fragmented binary messages off Java-WebSocket, which would assemble them in memory.
+     */
+    private static class StreamingDraft extends Draft_6455 {
+        private WSTestServer server;
+        private ByteArrayOutputStream head;
+        private ByteArrayOutputStream file;
+        private MessageDigest digest;
+        private int type;
+        private long sequence;
+        private JSONObject metadata;
+        private long fileSize;
+
+        @Override
+        public Draft copyInstance() {
+            StreamingDraft copy = new StreamingDraft();
+            copy.server = server;
+            return copy;
+        }
+
+        @Override
+        public void processFrame(WebSocketImpl webSocketImpl, Framedata frame) throws InvalidDataException {
+            Opcode opcode = frame.getOpcode();
+            if (head != null && (opcode == Opcode.BINARY || opcode == Opcode.TEXT)) {
+                throw new InvalidDataException(CloseFrame.PROTOCOL_ERROR, "A data frame arrived inside a fragmented message.");
+            }
+            if (opcode == Opcode.BINARY && !frame.isFin()) {
+                head = new ByteArrayOutputStream();
+                file = new ByteArrayOutputStream();
+                digest = newDigest();
+                metadata = null;
+                fileSize = 0;
+            } else if (opcode != Opcode.CONTINUOUS || head == null) {
+                super.processFrame(webSocketImpl, frame);
+                return;
+            }
+            ByteBuffer payload = frame.getPayloadData();
+            if (metadata == null) {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                head.write(bytes, 0, bytes.length);
+                payload = readHead();
+            }
+            if (payload != null && payload.hasRemaining()) {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                digest.update(bytes);
+                if (fileSize + bytes.length <= KEPT_FILE_SIZE) {
+                    file.write(bytes, 0, bytes.length);
+                }
+                fileSize += bytes.length;
+            }
+            if (frame.isFin()) {
+                Received packet = new Received(type, sequence, metadata, fileSize <= KEPT_FILE_SIZE ? file.toByteArray() : null,
+                        fileSize, toHex(digest.digest()));
+                head = null;
+                file = null;
+                server.onPacket(webSocketImpl, packet);
+            }
+        }
+
+        // Returns the file data that followed the metadata, or null while the metadata is incomplete.
+        private ByteBuffer readHead() {
+            ByteBuffer data = ByteBuffer.wrap(head.toByteArray());
+            if (data.remaining() < 5) {
+                return null;
+            }
+            int flags = data.get(1) & 0xFF;
+            int metadataLen = ((data.get(2) & 0xFF) << 16) | ((data.get(3) & 0xFF) << 8) | (data.get(4) & 0xFF);
+            int headerSize = (flags & FLAG_SEQUENCED) != 0 ? 13 : 5;
+            if (data.remaining() < headerSize + metadataLen) {
+                return null;
+            }
+            type = data.get(0);
+            sequence = headerSize == 13 ? data.getLong(5) : -1;
+            data.position(headerSize);
+            byte[] json = new byte[metadataLen];
+            data.get(json);
+            metadata = metadataLen == 0 ? new JSONObject() : new JSONObject(new String(json, StandardCharsets.UTF_8));
+            return data;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WSUploadDedupTest {
+    private static final byte[] CONTENT = "The content of the uploaded file".getBytes(StandardCharsets.UTF_8);
+    private WSTestServer server;
+    private WSClient.WSRuntime runtime;
+    private File indexFile;
+    private WSClient client;
+    private WSRecordingEvents events;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new WSTestServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        indexFile = File.createTempFile("ws-upload-index", ".txt");
+        indexFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close(0);
+        }
+        runtime.shutdown();
+        server.stop(1000);
+        indexFile.delete();
+    }
+
+    private WSClient connect() throws Exception {
+        events = new WSRecordingEvents();
+        client = new WSClient(WSClient.WSOptions.init()
+                .setUrl(server.getUrl())
+                .setRuntime(runtime)
+                .setUploadDedup(indexFile, 16, 5000), events);
+        client.connect();
+        events.awaitConnected();
+        return client;
+    }
+
+    // Uploads the content once and returns its hash once the index has it. The hash is added after the upload was
+    // written to the socket, possibly after the server got it, the index file shows it at the next flush.
+    private String uploadOnce() throws Exception {
+        client.sendPacket(new JSONObject().put("type", "upload"), CONTENT);
+        WSTestServer.Received upload = server.take(2, 5000);
+        assertEquals(CONTENT.length, upload.fileSize);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!indexFile.isFile() || !Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8).contains(upload.fileHash)) {
+            assertTrue("The hash was not written to the index", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        return upload.fileHash;
+    }
+
+    private WebSocket connection() {
+        return server.getConnections().iterator().next();
+    }
+
+    @Test
+    public void knownFileIsQueriedAndNotUploadedAgain() throws Exception {
+        connect();
+        String hash = uploadOnce();
+
+        client.sendPacket(new JSONObject().put("type", "upload"), CONTENT);
+        WSTestServer.Received query = server.take(2, 5000);
+        assertTrue(query.metadata.getBoolean("file_omitted"));
+        assertEquals(hash, query.metadata.getString("file_hash"));
+        assertEquals(0, query.fileSize);
+        server.send(connection(), 1, -1, new JSONObject().put("_rid", query.metadata.getString("_rid")), null);
+
+        assertNull("The file was uploaded again", server.received.poll(500, TimeUnit.MILLISECONDS));
+        assertTrue(events.errors.isEmpty());
+    }
+
+    @Test
+    public void missingFileIsUploaded() throws Exception {
+        connect();
+        uploadOnce();
+
+        client.sendPacket(new JSONObject().put("type", "upload"), CONTENT);
+        WSTestServer.Received query = server.take(2, 5000);
+        server.send(connection(), 1, -1, new JSONObject()
+                .put("_rid", query.metadata.getString("_rid"))
+                .put("file_missing", true), null);
+
+        WSTestServer.Received upload = server.take(2, 5000);
+        assertFalse(upload.metadata.has("file_omitted"));
+        assertEquals(CONTENT.length, upload.fileSize);
+        assertTrue(events.errors.isEmpty());
+    }
+
+    @Test
+    public void indexIsReloadedByTheNextClient() throws Exception {
+        connect();
+        String hash = uploadOnce();
+        client.close(0);
+
+        List<String> lines = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(hash, lines.get(lines.size() - 1));
+
+        connect();
+        client.sendPacket(new JSONObject().put("type", "upload"), CONTENT);
+        assertTrue(server.take(2, 5000).metadata.getBoolean("file_omitted"));
+    }
+
+    @Test
+    public void queryNotQueuedIsThrownToTheCaller() throws Exception {
+        connect();
+        uploadOnce();
+        client.close(0);
+
+        try {
+            client.sendPacket(new JSONObject().put("type", "upload"), CONTENT);
+            fail("The query of a closed client was accepted.");
+        } catch (IllegalStateException expected) {
+            // The client is closed.
+        }
+        assertTrue(events.errors.isEmpty());
+    }
+
+    @Test
+    public void closeWhileQueryingIsNotAnError() throws Exception {
+        connect();
+        uploadOnce();
+
+        client.sendPacket(new JSONObject().put("type", "upload"), CONTENT);
+        assertTrue(server.take(2, 5000).metadata.getBoolean("file_omitted"));
+        client.close(0);
+
+        assertNull(events.errors.poll(500, TimeUnit.MILLISECONDS));
+    }
+}
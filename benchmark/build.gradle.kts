@@ -0,0 +1,33 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// WSClient has no Android dependency, the benchmarks compile it for the JVM from the app sources.
+sourceSets {
+    main {
+        java {
+            setSrcDirs(listOf("../app/src/main/java"))
+            include("space/safeyou/ws/WSClient.java")
+        }
+    }
+}
+
+dependencies {
+    implementation("org.java-websocket:Java-WebSocket:1.5.4")
+    implementation("org.json:json:20231013")
+}
+
+// ./gradlew :benchmark:jmh, results in build/results/jmh. The GC profiler reports the allocation rate per operation.
+jmh {
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,71 @@
+package space.safeyou.ws;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second for chatty traffic, small control packets sent back to back over a loopback connection,
+ * with one frame per packet and with batching. The count of frames the server received is printed at the end of
+ * each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchingBenchmark {
+    static final int BURST = 1000;
+
+    @Param({"0", "16384"})
+    public int batchMaxBytes;
+
+    @Param({"16", "256"})
+    public int messageSize;
+
+    private LoopbackServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private JSONObject metadata;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < messageSize) {
+            text.append('x');
+        }
+        metadata = new JSONObject().put("type", "location").put("data", text.toString());
+        server = new LoopbackServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        client = SenderBenchmark.connect(server, WSClient.WSOptions.init().setRuntime(runtime)
+                .setBatching(2, batchMaxBytes)
+                .setQueueCapacity(WSClient.WSPriority.CONTROL, BURST, WSClient.WSOverflowPolicy.BLOCK));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.printf("%d messages in %d frames%n", server.received(), server.frames());
+        client.close(1000);
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burst() throws Exception {
+        long target = server.received() + BURST;
+        for (int i = 0; i < BURST; i++) {
+            client.sendPacket(metadata, WSClient.WSPriority.CONTROL);
+        }
+        server.awaitReceived(target);
+    }
+}
@@ -0,0 +1,64 @@
+package space.safeyou.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame building with a fresh array per packet against an array taken from the buffer pool and released once the
+ * frame is handed over, as the sender does. Run with the GC profiler: gc.alloc.rate.norm and gc.count show the
+ * allocation and collections saved, the pooled path should only allocate the ByteBuffer wrapper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(2)
+public class BufferPoolBenchmark {
+    private static final byte[] METADATA = ("{\"type\":\"location\",\"data\":{\"coordinates\":\"40.7657796,43.8338588\"}}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"64", "1024", "16384", "131072"})
+    public int payloadSize;
+
+    private final WSClient.WSBufferPool pool = new WSClient.WSBufferPool();
+    private WSClient.WSPacket packet;
+
+    @Setup
+    public void setUp() {
+        byte[] body = new byte[METADATA.length + payloadSize];
+        System.arraycopy(METADATA, 0, body, 0, METADATA.length);
+        new Random(46).nextBytes(body);
+        packet = new WSClient.WSPacket(2, METADATA.length, body);
+    }
+
+    @Benchmark
+    public void freshFrame(Blackhole blackhole) {
+        byte[] frame = new byte[WSClient.WSUtils.frameSize(packet)];
+        WSClient.WSUtils.writePacket(packet, frame, 0);
+        blackhole.consume(ByteBuffer.wrap(frame));
+    }
+
+    @Benchmark
+    public void pooledFrame(Blackhole blackhole) {
+        int frameSize = WSClient.WSUtils.frameSize(packet);
+        byte[] frame = pool.acquire(frameSize);
+        try {
+            WSClient.WSUtils.writePacket(packet, frame, 0);
+            blackhole.consume(ByteBuffer.wrap(frame, 0, frameSize));
+        } finally {
+            pool.release(frame);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package space.safeyou.ws;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of the metadata codecs, for the metadata of a help request and for a dialog with a
+ * list of 50 locations. The encoded size is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodecBenchmark {
+    @Param({"json", "msgpack"})
+    public String codecName;
+
+    @Param({"help_request", "locations"})
+    public String metadataName;
+
+    private WSClient.WSCodec codec;
+    private JSONObject metadata;
+    private byte[] encoded;
+    private ByteArrayOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        codec = codecName.equals("json") ? WSClient.WSCodec.JSON : WSClient.WSCodec.MSGPACK;
+        if (metadataName.equals("help_request")) {
+            metadata = new JSONObject()
+                    .put("type", "help_request")
+                    .put("data", new JSONObject()
+                            .put("coordinates", "40.7657796,43.8338588")
+                            .put("address", "Lalayan St, Gyumri, Armenia")
+                            .put("message", "Please help me!!!")
+                            .put("country_code", "am")
+                            .put("language_code", "en"));
+        } else {
+            JSONArray locations = new JSONArray();
+            for (int i = 0; i < 50; i++) {
+                locations.put(new JSONObject().put("id", i).put("lat", 40.7657796 + i * 0.001)
+                        .put("lng", 43.8338588 - i * 0.001).put("accuracy", i % 50).put("verified", i % 2 == 0));
+            }
+            metadata = new JSONObject().put("type", "locations").put("data", locations);
+        }
+        output = new ByteArrayOutputStream(4096);
+        codec.encode(metadata, output);
+        encoded = output.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(codecName + ", " + metadataName + ": " + encoded.length + " B");
+    }
+
+    @Benchmark
+    public int encode() throws Exception {
+        output.reset();
+        codec.encode(metadata, output);
+        return output.size();
+    }
+
+    @Benchmark
+    public JSONObject decode() {
+        return codec.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public String readType() {
+        return codec.readString(ByteBuffer.wrap(encoded), "type");
+    }
+}
@@ -0,0 +1,84 @@
+package space.safeyou.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bytes on the wire against CPU time of the packet compression, for the metadata of a help request and for a
+ * 64 KiB JSON file, at three deflate levels, with and without a preset dictionary. The compressed size is printed
+ * at the end of each trial, the scores give the CPU cost of one deflate and one inflate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    private static final String METADATA = "{\"type\":\"help_request\",\"data\":{\"coordinates\":\"40.7657796,43.8338588\","
+            + "\"address\":\"Lalayan St, Gyumri, Armenia\",\"message\":\"Please help me!!!\",\"country_code\":\"am\","
+            + "\"language_code\":\"en\"}}";
+    private static final byte[] DICTIONARY = ("\"type\":\"help_request\",\"data\":{\"coordinates\":\"\",\"address\":\"\","
+            + "\"message\":\"\",\"country_code\":\"\",\"language_code\":\"en\"}").getBytes(StandardCharsets.UTF_8);
+
+    @Param({"metadata", "file"})
+    public String content;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"false", "true"})
+    public boolean dictionary;
+
+    private byte[] input;
+    private byte[] compressed;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (content.equals("metadata")) {
+            input = METADATA.getBytes(StandardCharsets.UTF_8);
+        } else {
+            StringBuilder file = new StringBuilder("[");
+            for (int i = 0; file.length() < 64 * 1024; i++) {
+                file.append("{\"id\":").append(i).append(",\"lat\":40.").append(7657796 + i * 31)
+                        .append(",\"lng\":43.").append(8338588 - i * 17).append(",\"accuracy\":").append(i % 50).append("},");
+            }
+            input = file.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+        }
+        deflater = new Deflater(level);
+        inflater = new Inflater();
+        compressed = WSClient.WSUtils.deflate(deflater, dictionary ? DICTIONARY : null, input, 0, input.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(content + ", level " + level + (dictionary ? ", dictionary" : "") + ": "
+                + input.length + " B -> " + compressed.length + " B on the wire");
+        deflater.end();
+        inflater.end();
+    }
+
+    @Benchmark
+    public byte[] deflate() {
+        return WSClient.WSUtils.deflate(deflater, dictionary ? DICTIONARY : null, input, 0, input.length);
+    }
+
+    @Benchmark
+    public byte[] inflate() throws DataFormatException {
+        return WSClient.WSUtils.inflate(inflater, dictionary ? DICTIONARY : null, ByteBuffer.wrap(compressed), Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,68 @@
+package space.safeyou.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plain SHA-256 of an upload against its tree hash with 64 KiB and 1 MiB leaves, and the hex encoding of a
+ * digest. The leaves are hashed on a pool of one thread per core, as on the hash executor, so the tree hash only
+ * gains on a machine with several cores; on one core it shows the cost of the extra leaf digests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HashingBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private final byte[] digest = new byte[32];
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadSize];
+        new Random(46).nextBytes(payload);
+        new Random(46).nextBytes(digest);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public String sha256() {
+        return WSClient.WSHasher.sha256(payload);
+    }
+
+    @Benchmark
+    public String treeHash64KiB() throws IOException {
+        return WSClient.WSHasher.treeHash(WSClient.WSHasher.input(payload), payloadSize, 64 * 1024, executor);
+    }
+
+    @Benchmark
+    public String treeHash1MiB() throws IOException {
+        return WSClient.WSHasher.treeHash(WSClient.WSHasher.input(payload), payloadSize, 1024 * 1024, executor);
+    }
+
+    // Does not depend on the payload size, run it alone with -p payloadSize=65536.
+    @Benchmark
+    public String toHex() {
+        return WSClient.WSHasher.toHex(digest);
+    }
+}
@@ -0,0 +1,74 @@
+package space.safeyou.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the logging on the packet paths with the level disabled, which should allocate nothing, and of the two
+ * ways of binding the Android logger: a reflective Method.invoke per call against invokeExact on a constant
+ * MethodHandle. A static method with the signature of android.util.Log.println stands in for it on the JVM.
+ * Run with -prof gc to see the allocation per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoggingBenchmark {
+    private static final String TAG = "WSClient";
+    private static final byte[] METADATA = "{\"type\":\"help_request\"}".getBytes(StandardCharsets.UTF_8);
+    private static final Method PRINTLN_METHOD;
+    private static final MethodHandle PRINTLN_HANDLE;
+
+    static {
+        try {
+            PRINTLN_METHOD = LoggingBenchmark.class.getMethod("println", int.class, String.class, String.class);
+            PRINTLN_HANDLE = MethodHandles.publicLookup().findStatic(LoggingBenchmark.class, "println",
+                    MethodType.methodType(int.class, int.class, String.class, String.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final WSClient.WSLogger disabled = WSClient.WSLogger.create(WSClient.WSLogger.INFO);
+    private final WSClient.WSPacket packet = new WSClient.WSPacket(1, METADATA.length, METADATA);
+    private final String message = "(SEND) / PacketType: \"1\" -> PacketDataSize: 24 B";
+    private int level = WSClient.WSLogger.DEBUG;
+
+    public static int println(int priority, String tag, String message) {
+        return message.length();
+    }
+
+    // The guarded form used on the send and receive paths.
+    @Benchmark
+    public void disabledPacketLog() {
+        if (disabled.isLoggable(WSClient.WSLogger.VERBOSE)) {
+            disabled.log(WSClient.WSLogger.VERBOSE, TAG, "(RECEIVED) / PacketType: \"" + packet.getType()
+                    + "\" -> PacketDataSize: " + WSClient.WSUtils.formatDataSize(packet.getDataSize()), null);
+        }
+    }
+
+    @Benchmark
+    public void disabledDebugLog() {
+        disabled.d(TAG, "(SEND) / Drained");
+    }
+
+    @Benchmark
+    public int reflectiveInvoke() throws Exception {
+        return (Integer) PRINTLN_METHOD.invoke(null, level, TAG, message);
+    }
+
+    @Benchmark
+    public int methodHandleInvokeExact() throws Throwable {
+        return (int) PRINTLN_HANDLE.invokeExact(level, TAG, message);
+    }
+}
@@ -0,0 +1,105 @@
+package space.safeyou.ws;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Local server for the send path benchmarks. It verifies every connection and counts the packets it receives,
+ * batch envelopes included, without decoding their metadata.
+ */
+class LoopbackServer extends WebSocketServer {
+    private static final int TYPE_BATCH = -2;
+    private static final byte[] VERIFICATION = "{\"id\":\"bench\",\"sid\":\"bench\",\"info\":{}}".getBytes(StandardCharsets.UTF_8);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private long received;
+    private long frames;
+
+    LoopbackServer() {
+        super(new InetSocketAddress("127.0.0.1", 0));
+        setReuseAddr(true);
+    }
+
+    LoopbackServer startAndWait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The loopback server did not start.");
+        }
+        return this;
+    }
+
+    String getUrl() {
+        return "ws://127.0.0.1:" + getPort();
+    }
+
+    synchronized long received() {
+        return received;
+    }
+
+    synchronized long frames() {
+        return frames;
+    }
+
+    // Waits until the count of received packets reaches the target.
+    synchronized void awaitReceived(long target) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received < target) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Received " + received + " of " + target + " packets.");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        ByteBuffer frame = ByteBuffer.allocate(5 + VERIFICATION.length);
+        frame.put((byte) 0).put((byte) 0);
+        frame.put((byte) (VERIFICATION.length >> 16)).put((byte) (VERIFICATION.length >> 8)).put((byte) VERIFICATION.length);
+        frame.put(VERIFICATION).flip();
+        conn.send(frame);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        int count = 1;
+        if (message.get(message.position()) == TYPE_BATCH) {
+            // [type][flags][length], then [int length][packet] entries.
+            count = 0;
+            for (int i = message.position() + 5; i + 4 <= message.limit(); i += 4 + message.getInt(i)) {
+                count++;
+            }
+        }
+        synchronized (this) {
+            received += count;
+            frames++;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        ex.printStackTrace();
+    }
+}
@@ -0,0 +1,83 @@
+package space.safeyou.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable appends to the outbox journal against appends to a plain file. Each outbox append is forced to disk and
+ * acknowledged, like a packet that is journaled and then sent; the plain file is synced after each write for the
+ * same durability, and also measured without the sync as the upper bound.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class OutboxBenchmark {
+    private static final WSClient.WSLogger SILENT = WSClient.WSLogger.create(WSClient.WSLogger.ERROR + 1);
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private final WSClient.WSBufferPool pool = new WSClient.WSBufferPool();
+    private File directory;
+    private WSClient.WSOutbox outbox;
+    private FileOutputStream stream;
+    private WSClient.WSPacket packet;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ws-outbox-bench").toFile();
+        outbox = new WSClient.WSOutbox(directory, 4 * 1024 * 1024, SILENT);
+        outbox.open();
+        stream = new FileOutputStream(new File(directory, "plain.log"), true);
+        byte[] payload = new byte[payloadSize];
+        new Random(46).nextBytes(payload);
+        packet = new WSClient.WSPacket(1, 0, payload);
+        frame = WSClient.WSUtils.createPacket(packet);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        outbox.close();
+        stream.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long outboxAppend() throws IOException {
+        long id = outbox.append(1, packet, pool);
+        outbox.acknowledge(id);
+        return id;
+    }
+
+    @Benchmark
+    public void fileOutputStreamSync() throws IOException {
+        stream.write(frame);
+        stream.getFD().sync();
+    }
+
+    @Benchmark
+    public void fileOutputStreamNoSync() throws IOException {
+        stream.write(frame);
+    }
+}
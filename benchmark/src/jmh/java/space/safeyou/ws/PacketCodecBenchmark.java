@@ -0,0 +1,72 @@
+package space.safeyou.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Baseline of the packet codec paths, for a packet with a small JSON metadata and a file region of
+ * {@code payloadSize} bytes. Run with the GC profiler to compare the allocation rate of codec changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketCodecBenchmark {
+    private static final byte[] METADATA = ("{\"type\":\"help_request\",\"data\":{\"coordinates\":\"40.7657796,43.8338588\","
+            + "\"address\":\"Lalayan St, Gyumri, Armenia\",\"message\":\"Please help me!!!\",\"language_code\":\"en\"}}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"64", "1024", "65536", "1048576", "67108864"})
+    public int payloadSize;
+
+    private byte[] body;
+    private byte[] payload;
+    private WSClient.WSPacket packet;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadSize];
+        new Random(46).nextBytes(payload);
+        body = new byte[METADATA.length + payloadSize];
+        System.arraycopy(METADATA, 0, body, 0, METADATA.length);
+        System.arraycopy(payload, 0, body, METADATA.length, payloadSize);
+        packet = new WSClient.WSPacket(2, METADATA.length, body);
+        frame = WSClient.WSUtils.createPacket(packet);
+    }
+
+    @Benchmark
+    public byte[] createPacket() {
+        return WSClient.WSUtils.createPacket(packet);
+    }
+
+    @Benchmark
+    public WSClient.WSPacket readPacket() {
+        return WSClient.WSUtils.readPacket(ByteBuffer.wrap(frame));
+    }
+
+    @Benchmark
+    public WSClient.WSPacket newPacket() {
+        return new WSClient.WSPacket(2, METADATA.length, body);
+    }
+
+    @Benchmark
+    public String sha256() {
+        return WSClient.WSHasher.sha256(payload);
+    }
+
+    @Benchmark
+    public String formatDataSize() {
+        return WSClient.WSUtils.formatDataSize(payloadSize);
+    }
+}
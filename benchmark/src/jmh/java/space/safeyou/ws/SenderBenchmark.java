@@ -0,0 +1,105 @@
+package space.safeyou.ws;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send pipeline over a loopback connection. {@code burst} gives the packets per second a client sends when the
+ * application queues them faster than the socket takes them, {@code single} the time from {@code sendPacket} to the
+ * packet reaching the server when the sender is idle, as for a help request. The sender used to sleep 100 ms after
+ * every packet, which capped a client at about 10 packets/s and delayed an idle send by up to 100 ms.
+ */
+@State(Scope.Benchmark)
+public class SenderBenchmark {
+    static final int BURST = 1000;
+
+    private LoopbackServer server;
+    private WSClient.WSRuntime runtime;
+    private WSClient client;
+    private final JSONObject metadata = new JSONObject()
+            .put("type", "help_request")
+            .put("data", new JSONObject().put("coordinates", "40.7657796,43.8338588").put("language_code", "en"));
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LoopbackServer().startAndWait();
+        runtime = WSClient.WSRuntime.create(2);
+        client = connect(server, WSClient.WSOptions.init().setRuntime(runtime)
+                .setQueueCapacity(WSClient.WSPriority.CONTROL, BURST, WSClient.WSOverflowPolicy.BLOCK));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.close(1000);
+        runtime.shutdown();
+        server.stop(1000);
+    }
+
+    static WSClient connect(LoopbackServer server, WSClient.WSOptions options) throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        WSClient client = new WSClient(options.setUrl(server.getUrl()), new WSClient.WSEvents() {
+            @Override
+            public void onConnecting(WSClient client) {
+            }
+
+            @Override
+            public void onConnected(WSClient client, String id) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(WSClient client, int code, String reason) {
+            }
+
+            @Override
+            public void onReceivedPacket(WSClient client, WSClient.WSPacket packet) {
+            }
+
+            @Override
+            public void onError(WSClient client, Exception exception) {
+            }
+
+            @Override
+            public void onPingTime(WSClient client, long milliseconds) {
+            }
+        });
+        client.connect();
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The client did not connect.");
+        }
+        return client;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void burst() throws Exception {
+        long target = server.received() + BURST;
+        for (int i = 0; i < BURST; i++) {
+            client.sendPacket(metadata, WSClient.WSPriority.CONTROL);
+        }
+        server.awaitReceived(target);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void single() throws Exception {
+        long target = server.received() + 1;
+        client.sendPacket(metadata, WSClient.WSPriority.CRITICAL);
+        server.awaitReceived(target);
+    }
+}
@@ -21,4 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "SafeYOU-Helper"
 include(":app")
+include(":benchmark")
  
\ No newline at end of file